@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads.PayloadSize;
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller.ParsedSnsRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.validation.RequestValidator;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarshallerBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private PayloadSize payloadSize;
+
+    private String notificationJson;
+    private byte[] notificationBytes;
+    private SnsRecordContent recordContent;
+    private ClaimCheckStore claimChecks;
+    private RequestValidator validator;
+
+    @Setup
+    public void setUp() {
+        recordContent = BenchmarkPayloads.recordContent(BenchmarkPayloads.requestJson(payloadSize));
+        notificationJson = BenchmarkPayloads.notificationJson(recordContent);
+        notificationBytes = notificationJson.getBytes(StandardCharsets.UTF_8);
+        // Claim checks are disabled, so every request is inline.
+        claimChecks = new ClaimCheckStore(null, null, Long.MAX_VALUE);
+        validator = new RequestValidator(BenchmarkPayloads.ARTIFACT_BUCKET);
+    }
+
+    @Benchmark
+    public SnsRecordContent readSnsRecordContent() {
+        return CustomResourceMarshaller.readSnsRecordContent(notificationJson, false);
+    }
+
+    @Benchmark
+    public CustomResourceRequest readCustomResourceRequest() {
+        return CustomResourceMarshaller.readCustomResourceRequest(recordContent, false);
+    }
+
+    @Benchmark
+    public List<ParsedSnsRequest> readSnsRequests() {
+        return CustomResourceMarshaller.readSnsRequests(new ByteArrayInputStream(notificationBytes), claimChecks,
+                validator);
+    }
+}
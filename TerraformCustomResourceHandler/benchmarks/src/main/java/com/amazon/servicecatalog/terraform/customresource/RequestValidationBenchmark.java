@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads.PayloadSize;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.amazon.servicecatalog.terraform.customresource.validation.RequestValidator;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestValidationBenchmark {
+
+    @Param({"SMALL", "LARGE"})
+    private PayloadSize payloadSize;
+
+    private CustomResourceRequest request;
+    private SnsRecordContent recordContent;
+    private RequestValidator validator;
+
+    @Setup
+    public void setUp() {
+        recordContent = BenchmarkPayloads.recordContent(BenchmarkPayloads.requestJson(payloadSize));
+        request = CustomResourceMarshaller.readCustomResourceRequest(recordContent, false);
+        validator = new RequestValidator(BenchmarkPayloads.ARTIFACT_BUCKET);
+        // Measure the valid path, which is the common one.
+        List<String> violations = validator.validate(request, recordContent);
+        if (!violations.isEmpty()) {
+            throw new IllegalStateException("Benchmark request is invalid: " + violations);
+        }
+    }
+
+    @Benchmark
+    public List<String> validate() {
+        return validator.validate(request, recordContent);
+    }
+
+    /**
+     * Construct a Create request, which derives the physical resource ID from the stack ID.
+     */
+    @Benchmark
+    public String derivePhysicalResourceId() {
+        return request.toBuilder()
+                .physicalResourceId(null)
+                .build()
+                .getPhysicalResourceId();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads.PayloadSize;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+
+/**
+ * Verifies notifications signed with a local test certificate (sns-test-certificate.p12, CN=sns.amazonaws.com), which
+ * is put into the certificate cache up front, so no certificate is fetched.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnsSignatureBenchmark {
+    private static final String KEY_STORE = "/sns-test-certificate.p12";
+    private static final char[] KEY_STORE_PASSWORD = "benchmark".toCharArray();
+    private static final String KEY_ALIAS = "sns";
+
+    private SnsRecordContent recordContent;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream input = SnsSignatureBenchmark.class.getResourceAsStream(KEY_STORE)) {
+            keyStore.load(input, KEY_STORE_PASSWORD);
+        }
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEY_STORE_PASSWORD);
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+
+        recordContent = BenchmarkPayloads.recordContent(BenchmarkPayloads.requestJson(PayloadSize.MEDIUM));
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(privateKey);
+        signature.update(SnsSignatureVerifier.buildStringToSign(recordContent).getBytes(StandardCharsets.UTF_8));
+        recordContent.setSignature(Base64.getEncoder().encodeToString(signature.sign()));
+
+        SnsSignatureVerifier.cacheCertificate(recordContent.getSigningCertUrl(), certificate);
+        // Fail the setup rather than measuring the exception path.
+        CustomResourceMarshaller.verifySnsSignature(recordContent);
+    }
+
+    @Benchmark
+    public SnsRecordContent verifySnsSignature() {
+        CustomResourceMarshaller.verifySnsSignature(recordContent);
+        return recordContent;
+    }
+}
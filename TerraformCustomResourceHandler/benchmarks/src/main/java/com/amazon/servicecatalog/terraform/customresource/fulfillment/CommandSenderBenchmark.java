@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads;
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads.PayloadSize;
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller;
+import com.amazon.servicecatalog.terraform.customresource.facades.Ec2Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.S3Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+import com.amazon.servicecatalog.terraform.customresource.model.ArtifactMetadata;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.persistence.AppliedConfigurationStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.DispatchRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.InMemoryCommandRecordStore;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+
+/**
+ * Builds the SSM shell script of a dispatch. No AWS calls are made.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandSenderBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private PayloadSize payloadSize;
+
+    private CommandSender commandSender;
+    private ArtifactMetadata artifactMetadata;
+
+    @Setup
+    public void setUp() {
+        CustomResourceRequest request = CustomResourceMarshaller.readCustomResourceRequest(
+                BenchmarkPayloads.requestJson(payloadSize), false);
+        EnvConfig envConfig = new EnvConfig("command-output-bucket",
+                "command-record-bucket",
+                new Tag("terraform-server-tag-key", "terraform-server-tag-value"),
+                "terraform-config-" + BenchmarkPayloads.ACCOUNT_ID,
+                InstanceSelectionMode.RANDOM,
+                CommandRecordStoreMode.IN_MEMORY,
+                "/tmp/tf-command-records",
+                0,
+                BenchmarkPayloads.TOPIC_ARN,
+                true,
+                true);
+        commandSender = new CommandSender(request, envConfig, "TerraformHubAccount-111122223333",
+                new Ec2Facade((AmazonEC2) null),
+                new SsmFacade((AWSSimpleSystemsManagement) null),
+                new S3Facade((AmazonS3) null),
+                new InMemoryCommandRecordStore(),
+                new AppliedConfigurationStore(null, "command-output-bucket"),
+                new DispatchRecordStore(null, "command-record-bucket"),
+                new ClaimCheckStore(null, null, Long.MAX_VALUE));
+        artifactMetadata = new ArtifactMetadata("5d41402abc4b2a76b9719d911017c592", "3HL4kqtJlcpXroDTDmJ.rmSpXd3dIbrH", 2048);
+    }
+
+    @Benchmark
+    public String createOutputS3KeyPrefix() {
+        return commandSender.createOutputS3KeyPrefix();
+    }
+
+    @Benchmark
+    public List<String> buildCommands() {
+        return commandSender.buildCommands(commandSender.createOutputS3KeyPrefix(), artifactMetadata);
+    }
+}
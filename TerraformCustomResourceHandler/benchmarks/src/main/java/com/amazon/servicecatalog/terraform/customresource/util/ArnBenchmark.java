@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.util;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazon.servicecatalog.terraform.customresource.BenchmarkPayloads;
+import com.amazon.servicecatalog.terraform.customresource.model.StackId;
+import com.google.common.base.Splitter;
+
+/**
+ * Reads the region, account ID and stack name of a stack ID the way the request path did with Splitter, compared
+ * with parsing it into a {@link StackId} and with reading the components of an already parsed one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArnBenchmark {
+    private static final Splitter DELIMITER_SPLITTER = Splitter.on(':');
+    private static final Splitter RESOURCE_SPLITTER = Splitter.on('/');
+
+    private String stackIdString;
+    private StackId stackId;
+
+    @Setup
+    public void setUp() {
+        stackIdString = BenchmarkPayloads.STACK_ID;
+        stackId = StackId.parse(stackIdString);
+    }
+
+    @Benchmark
+    public void splitter(Blackhole blackhole) {
+        List<String> stackIdParts = DELIMITER_SPLITTER.splitToList(stackIdString);
+        blackhole.consume(stackIdParts.get(3));
+        blackhole.consume(stackIdParts.get(4));
+        blackhole.consume(RESOURCE_SPLITTER.splitToList(stackIdParts.get(5)).get(1));
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        StackId parsed = StackId.parse(stackIdString);
+        blackhole.consume(parsed.getRegion());
+        blackhole.consume(parsed.getAccountId());
+        blackhole.consume(parsed.getStackName());
+    }
+
+    @Benchmark
+    public void parsed(Blackhole blackhole) {
+        blackhole.consume(stackId.getRegion());
+        blackhole.consume(stackId.getAccountId());
+        blackhole.consume(stackId.getStackName());
+    }
+}
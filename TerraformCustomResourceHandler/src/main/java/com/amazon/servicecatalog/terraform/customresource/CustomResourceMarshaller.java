@@ -15,23 +15,37 @@
 
 package com.amazon.servicecatalog.terraform.customresource;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.model.AppliedConfiguration;
+import com.amazon.servicecatalog.terraform.customresource.model.ArtifactMetadata;
+import com.amazon.servicecatalog.terraform.customresource.model.CommandCompletion;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceResponse;
 import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsNotification;
 import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsNotification.SnsRecord;
 import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
-import com.amazonaws.SdkClientException;
-import com.amazonaws.services.sns.message.SnsMessageManager;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordResult;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.validation.RequestValidator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
+import com.google.common.collect.ImmutableList;
 
+import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
@@ -39,7 +53,6 @@ public class CustomResourceMarshaller {
 
     private static ObjectMapper strictMapper;
     private static ObjectMapper lenientMapper;
-    private static SnsMessageManager messageManager = new SnsMessageManager();
 
     static {
         strictMapper = new ObjectMapper();
@@ -50,6 +63,92 @@ public class CustomResourceMarshaller {
         lenientMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
+    /**
+     * Read the SNS notification and the CloudFormation requests nested in the messages of all of its records in a
+     * single pass over the input stream. Input that the strict mapper would reject (unknown properties) is accepted
+     * and recorded as strict-mode violations, so callers that need the lenient result to post a failure do not
+     * parse again. A record whose message cannot be parsed is returned with its parse error rather than failing the
+     * other records. Claim-checked requests are fetched and parsed in place of their envelope once the signature of
+     * the envelope verified, see {@link ClaimCheckStore}. Each request is validated right after it is parsed, see {@link RequestValidator}.
+     * Records that notify of a completed command are parsed as such, see {@link CommandCompletion}.
+     *
+     * @param input the Lambda input stream
+     * @param claimChecks the store of claim-checked requests
+     * @param validator the validator of the parsed requests
+     * @return one parsed request per SNS record, in record order
+     */
+    public static List<ParsedSnsRequest> readSnsRequests(InputStream input, ClaimCheckStore claimChecks,
+            RequestValidator validator) {
+        List<String> envelopeViolations = new ArrayList<>();
+        SnsNotification notification;
+        try {
+            notification = strictReader(envelopeViolations).forType(SnsNotification.class).readValue(input);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return getRecordContentsFromSnsNotification(notification).stream()
+                .map(recordContent -> readSnsRequest(recordContent, envelopeViolations, claimChecks, validator))
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    private static ParsedSnsRequest readSnsRequest(SnsRecordContent recordContent, List<String> envelopeViolations,
+            ClaimCheckStore claimChecks, RequestValidator validator) {
+        List<String> violations = new ArrayList<>(envelopeViolations);
+        try {
+            String message = Optional.ofNullable(recordContent.getMessage())
+                    .orElseThrow(() -> new RuntimeException("Unexpected SNS input message format."));
+            if (CommandCompletion.isCommandCompletion(recordContent)) {
+                CommandCompletion completion = strictReader(violations).forType(CommandCompletion.class)
+                        .readValue(message);
+                return new ParsedSnsRequest(recordContent, null, completion, ImmutableList.copyOf(violations),
+                        ImmutableList.of(), null);
+            }
+            CustomResourceRequest request = strictReader(violations).forType(CustomResourceRequest.class).readValue(message);
+            if (request.getClaimCheck() != null) {
+                // The claim check is only redeemed for a verified envelope, so an unverified message cannot make the
+                // hub read from S3. An unverified record is returned as a parse error, which is never answered.
+                StageMetrics.time("VerifySnsSignature", () -> verifySnsSignature(recordContent));
+                try {
+                    request = redeemClaimCheck(request, claimChecks, violations);
+                } catch (IOException | RuntimeException e) {
+                    // The envelope still carries everything needed to respond to CloudFormation.
+                    log.error("Unable to resolve claim-checked request.", e);
+                    List<String> validationErrors = ImmutableList.of(
+                            "Unable to resolve claim-checked request: " + e.getMessage());
+                    return new ParsedSnsRequest(recordContent, request, null, ImmutableList.copyOf(violations),
+                            validationErrors, null);
+                }
+            }
+            List<String> validationErrors = ImmutableList.copyOf(validator.validate(request, recordContent));
+            return new ParsedSnsRequest(recordContent, request, null, ImmutableList.copyOf(violations), validationErrors,
+                    null);
+        } catch (IOException e) {
+            return new ParsedSnsRequest(recordContent, null, null, ImmutableList.copyOf(violations), ImmutableList.of(),
+                    new RuntimeException(e));
+        } catch (RuntimeException e) {
+            return new ParsedSnsRequest(recordContent, null, null, ImmutableList.copyOf(violations), ImmutableList.of(),
+                    e);
+        }
+    }
+
+    private static CustomResourceRequest redeemClaimCheck(CustomResourceRequest envelope, ClaimCheckStore claimChecks,
+            List<String> violations) throws IOException {
+        byte[] content = StageMetrics.time("RedeemClaimCheck", () -> claimChecks.redeem(envelope.getClaimCheck()));
+        CustomResourceRequest request = strictReader(violations).forType(CustomResourceRequest.class).readValue(content);
+        if (request.getClaimCheck() != null
+                || !request.getRequestId().equals(envelope.getRequestId())
+                || !request.getStackId().equals(envelope.getStackId())
+                || !request.getResponseUrl().equals(envelope.getResponseUrl())) {
+            throw new RuntimeException("Claim-checked request does not match its envelope.");
+        }
+        return request;
+    }
+
+    private static ObjectReader strictReader(List<String> violations) {
+        return strictMapper.reader().withHandler(new StrictModeViolationRecorder(violations));
+    }
+
     public static SnsRecordContent readSnsRecordContent(String input, boolean readLeniently) {
         try {
             ObjectMapper mapper = readLeniently ? lenientMapper : strictMapper;
@@ -77,30 +176,64 @@ public class CustomResourceMarshaller {
         }
     }
 
-    public static void verifySnsSignature(SnsRecordContent notification) {
-        String notificationString;
+    public static AppliedConfiguration readAppliedConfiguration(byte[] input) {
         try {
-            notificationString = lenientMapper.writeValueAsString(notification);
-        } catch (JsonProcessingException e) {
+            return lenientMapper.readValue(input, AppliedConfiguration.class);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        byte[] notificationBytes = notificationString.getBytes(StandardCharsets.UTF_8);
-        ByteArrayInputStream notificationInputStream = new ByteArrayInputStream(notificationBytes);
-
-        try {
-            messageManager.parseMessage(notificationInputStream);
-        } catch (SdkClientException e) {
-            throw new RuntimeException("Unable to verify SNS notification signature.", e);
-        }
+    public static void verifySnsSignature(SnsRecordContent notification) {
+        SnsSignatureVerifier.verify(notification);
     }
 
     private static SnsRecordContent getRecordContentFromSnsNotification(SnsNotification snsNotification) {
-        return Optional.ofNullable(snsNotification.getRecords())
+        return getRecordContentsFromSnsNotification(snsNotification).get(0);
+    }
+
+    private static List<SnsRecordContent> getRecordContentsFromSnsNotification(SnsNotification snsNotification) {
+        List<SnsRecord> records = Optional.ofNullable(snsNotification.getRecords())
                 .filter(rs -> !rs.isEmpty())
-                .map(rs -> rs.get(0))
-                .map(SnsRecord::getSns)
                 .orElseThrow(() -> new RuntimeException("Unexpected SNS input message format."));
+        return records.stream()
+                .map(record -> Optional.ofNullable(record.getSns())
+                        .orElseThrow(() -> new RuntimeException("Unexpected SNS input message format.")))
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    /**
+     * The outcome of parsing one SNS record. Exactly one of request, commandCompletion and parseError is set.
+     */
+    @Value
+    public static class ParsedSnsRequest {
+        private SnsRecordContent recordContent;
+        private CustomResourceRequest request;
+        private CommandCompletion commandCompletion;
+        private List<String> strictModeViolations;
+        private List<String> validationErrors;
+        private RuntimeException parseError;
+    }
+
+    /**
+     * Records unknown properties instead of failing, so a single parse yields both the lenient result and the
+     * reasons strict parsing would have failed.
+     */
+    private static class StrictModeViolationRecorder extends DeserializationProblemHandler {
+        private final List<String> violations;
+
+        StrictModeViolationRecorder(List<String> violations) {
+            this.violations = violations;
+        }
+
+        @Override
+        public boolean handleUnknownProperty(DeserializationContext ctxt, JsonParser p, JsonDeserializer<?> deserializer,
+                Object beanOrClass, String propertyName) throws IOException {
+            Class<?> type = beanOrClass instanceof Class ? (Class<?>) beanOrClass : beanOrClass.getClass();
+            violations.add(String.format("Unrecognized field \"%s\" (class %s)", propertyName, type.getName()));
+            p.skipChildren();
+            return true;
+        }
     }
 
     public static String write(CustomResourceRequest request) {
@@ -111,9 +244,33 @@ public class CustomResourceMarshaller {
         }
     }
 
-    public static String write(CustomResourceResponse response) {
+    public static String write(CommandCompletion completion) {
+        try {
+            return strictMapper.writeValueAsString(completion);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String write(ArtifactMetadata artifactMetadata) {
+        try {
+            return strictMapper.writeValueAsString(artifactMetadata);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void write(List<SnsRecordResult> results, OutputStream output) {
+        try {
+            strictMapper.writeValue(output, results);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] writeBytes(CustomResourceResponse response) {
         try {
-            return strictMapper.writeValueAsString(response);
+            return strictMapper.writeValueAsBytes(response);
         } catch(JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -16,63 +16,184 @@
 package com.amazon.servicecatalog.terraform.customresource;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceResponse;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceResponse.Status;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
 
 import lombok.extern.log4j.Log4j2;
 
+/**
+ * Posts custom resource responses to the pre-signed S3 URL of the request.
+ *
+ * Connections are pooled and kept alive across warm invocations. Every attempt is bounded by connect and socket
+ * timeouts, and IO errors and 5xx responses are retried with jittered exponential backoff, so a slow PUT fails fast
+ * instead of hanging the Lambda and leaving the stack waiting for its one hour timeout. Within a Lambda invocation,
+ * the timeouts are shortened to the time left and no retry is started that could not complete in time, see
+ * {@link Deadline}. Posts may use the response reserve of the deadline.
+ *
+ * Posts are synchronous. The failures of several records of a notification are still posted in parallel, since
+ * {@link TerraformRequestHandler} processes each record on its own thread.
+ */
 @Log4j2
 public class ResponsePoster {
 
-    private static final HttpClient httpClient = HttpClientBuilder.create().build();
+    /** The shortest timeout of an attempt, attempts are still made when the deadline is (nearly) exhausted. */
+    private static final int MIN_ATTEMPT_MILLIS = 1000;
+
+    private static final ResponsePoster defaultPoster = new ResponsePoster(ResponsePosterConfig.builder().build());
+
+    private final ResponsePosterConfig config;
+    private final CloseableHttpClient httpClient;
+
+    public ResponsePoster(ResponsePosterConfig config) {
+        this.config = config;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxConnections());
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(config.getConnectTimeoutMillis())
+                        .setSocketTimeout(config.getSocketTimeoutMillis())
+                        .setConnectionRequestTimeout(config.getConnectionRequestTimeoutMillis())
+                        .build())
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAliveMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAliveMillis > 0
+                            ? Math.min(keepAliveMillis, config.getKeepAliveMillis())
+                            : config.getKeepAliveMillis();
+                })
+                // Retries are done by postResponse, which also retries 5xx responses.
+                .disableAutomaticRetries()
+                .build();
+    }
 
     public static void postSuccess(CustomResourceRequest request) {
-        CustomResourceResponse response = CustomResourceResponse.builder(request)
+        postSuccess(request, null);
+    }
+
+    /**
+     * @param data the attributes of the resource, or null if it has none
+     */
+    public static void postSuccess(CustomResourceRequest request, Map<String, Object> data) {
+        defaultPoster.postResponse(request.getResponseUrl(), successResponse(request, data));
+    }
+
+    public static void postFailure(CustomResourceRequest request,
+                            String reason) {
+        defaultPoster.postResponse(request.getResponseUrl(), failureResponse(request, reason));
+    }
+
+    private static CustomResourceResponse successResponse(CustomResourceRequest request, Map<String, Object> data) {
+        return CustomResourceResponse.builder(request)
                 .status(Status.SUCCESS)
                 .reason("") // CFN doesn't post reason for successful events
+                .data(data)
                 .build();
-        postResponse(request.getResponseUrl(), response);
     }
 
-    public static void postFailure(CustomResourceRequest request,
-                            String reason) {
-        CustomResourceResponse response = CustomResourceResponse.builder(request)
+    private static CustomResourceResponse failureResponse(CustomResourceRequest request, String reason) {
+        return CustomResourceResponse.builder(request)
                 .status(Status.FAILED)
                 .reason(reason)
                 .build();
-        postResponse(request.getResponseUrl(), response);
     }
 
-    private static void postResponse(String responseUrl,
-                                     CustomResourceResponse response) {
-        try {
+    public void postResponse(String responseUrl,
+                             CustomResourceResponse response) {
+        StageMetrics.time("PostResponse", () -> doPostResponse(responseUrl, response));
+    }
+
+    private void doPostResponse(String responseUrl,
+                                CustomResourceResponse response) {
+        log.info("Posting response: " + response);
+        // Serialized straight to bytes. The entity needs a known length, since S3 rejects chunked uploads to
+        // pre-signed URLs.
+        byte[] serializedResponse = CustomResourceMarshaller.writeBytes(response);
+        Deadline deadline = Deadline.current();
+
+        for (int attempt = 1; ; attempt++) {
             HttpPut putRequest = new HttpPut(responseUrl);
             // Need to suppress Content-Type or S3 would give a 403 invalid signature response.
             putRequest.setHeader("Content-Type", null);
-            String serializedResponse = CustomResourceMarshaller.write(response);
-            log.info("Posting response: " + serializedResponse);
-            putRequest.setEntity(new StringEntity(serializedResponse));
-
-            HttpResponse httpResponse = httpClient.execute(putRequest);
+            putRequest.setEntity(new ByteArrayEntity(serializedResponse));
+            if (deadline != null) {
+                putRequest.setConfig(getRequestConfig(deadline));
+            }
 
-            int statusCode = httpResponse.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                throw new RuntimeException(String.format(
+            RuntimeException failure;
+            try (CloseableHttpResponse httpResponse = httpClient.execute(putRequest)) {
+                int statusCode = httpResponse.getStatusLine().getStatusCode();
+                // Release the connection to the pool.
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                if (statusCode == 200) {
+                    return;
+                }
+                failure = new RuntimeException(String.format(
                         "Received status code %d when posting response at URL %s to CloudFormation. Entire message: %s.",
                         statusCode, responseUrl, httpResponse));
+                if (statusCode < 500) {
+                    throw failure;
+                }
+            } catch (IOException e) {
+                failure = new RuntimeException("Unable to post response to URL " + responseUrl + " to CloudFormation", e);
+            }
+
+            if (attempt >= config.getMaxAttempts()) {
+                log.error(failure.getMessage(), failure);
+                throw failure;
+            }
+            long backoffMillis = getBackoffMillis(attempt);
+            if (deadline != null && deadline.getRemainingMillis() < backoffMillis + MIN_ATTEMPT_MILLIS) {
+                log.error("No time left to retry posting the response. " + failure.getMessage(), failure);
+                throw failure;
+            }
+            log.warn(String.format("Attempt %d of posting the response failed, retrying in %d ms: %s", attempt,
+                    backoffMillis, failure.getMessage()));
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
             }
-        } catch (IOException e) {
-            String message = "Unable to post response to URL " + responseUrl + " to CloudFormation";
-            log.error(message, e);
-            throw new RuntimeException(message, e);
         }
     }
+
+    /**
+     * The configured timeouts of an attempt, shortened to the time left in the invocation.
+     */
+    private RequestConfig getRequestConfig(Deadline deadline) {
+        int remainingMillis = (int) Math.max(Math.min(deadline.getRemainingMillis(), Integer.MAX_VALUE),
+                MIN_ATTEMPT_MILLIS);
+        return RequestConfig.custom()
+                .setConnectTimeout(Math.min(config.getConnectTimeoutMillis(), remainingMillis))
+                .setSocketTimeout(Math.min(config.getSocketTimeoutMillis(), remainingMillis))
+                .setConnectionRequestTimeout(Math.min(config.getConnectionRequestTimeoutMillis(), remainingMillis))
+                .build();
+    }
+
+    /**
+     * Full jitter: a random delay up to the exponentially growing, capped backoff.
+     */
+    private long getBackoffMillis(int attempt) {
+        long ceilingMillis = Math.min(config.getMaxBackoffMillis(), config.getBaseBackoffMillis() << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceilingMillis + 1);
+    }
 }
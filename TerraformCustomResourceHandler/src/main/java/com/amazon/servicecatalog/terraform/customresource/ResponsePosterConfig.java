@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Connection pool, timeout and retry settings of a {@link ResponsePoster}.
+ */
+@Builder
+@Value
+public class ResponsePosterConfig {
+    @Builder.Default private int maxConnections = 20;
+    @Builder.Default private int connectTimeoutMillis = 3000;
+    @Builder.Default private int socketTimeoutMillis = 10000;
+    @Builder.Default private int connectionRequestTimeoutMillis = 2000;
+    /** S3 closes idle connections after about 20 seconds, so pooled connections are not reused after this. */
+    @Builder.Default private long keepAliveMillis = 15000;
+    @Builder.Default private int maxAttempts = 4;
+    @Builder.Default private long baseBackoffMillis = 200;
+    @Builder.Default private long maxBackoffMillis = 2000;
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.amazon.servicecatalog.terraform.customresource.util.ArnParser;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Verifies the signature of SNS notifications delivered to Lambda.
+ *
+ * The string to sign is built directly from the parsed record fields, and signing certificates are kept in a
+ * process-wide cache keyed by SigningCertURL. Certificates are only fetched over HTTPS from the SNS endpoint of the
+ * topic's region.
+ */
+@Log4j2
+public final class SnsSignatureVerifier {
+
+    private static final String NOTIFICATION_TYPE = "Notification";
+    private static final String SNS_CERTIFICATE_COMMON_NAME = "sns.amazonaws.com";
+    private static final Pattern CERTIFICATE_PATH_PATTERN = Pattern.compile("^/SimpleNotificationService-[\\w-]+\\.pem$");
+    private static final long CERTIFICATE_TTL_HOURS = 24;
+    private static final long MAX_CACHED_CERTIFICATES = 50;
+    private static final int CERTIFICATE_FETCH_TIMEOUT_MILLIS = 5000;
+
+    private static final Cache<String, X509Certificate> certificateCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_CERTIFICATES)
+            .expireAfterWrite(CERTIFICATE_TTL_HOURS, TimeUnit.HOURS)
+            .build();
+
+    private static final HttpClient httpClient = HttpClientBuilder.create()
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(CERTIFICATE_FETCH_TIMEOUT_MILLIS)
+                    .setSocketTimeout(CERTIFICATE_FETCH_TIMEOUT_MILLIS)
+                    .build())
+            .build();
+
+    private SnsSignatureVerifier() {}
+
+    public static void verify(SnsRecordContent notification) {
+        if (!NOTIFICATION_TYPE.equals(notification.getType())) {
+            throw new RuntimeException("Unexpected SNS message type: " + notification.getType());
+        }
+
+        String algorithm = getSignatureAlgorithm(notification.getSignatureVersion());
+        X509Certificate certificate = getCertificate(notification.getSigningCertUrl(), notification.getTopicArn());
+
+        try {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(certificate.getPublicKey());
+            signature.update(buildStringToSign(notification).getBytes(StandardCharsets.UTF_8));
+            if (!signature.verify(Base64.getDecoder().decode(notification.getSignature()))) {
+                throw new RuntimeException("SNS notification signature is invalid.");
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new RuntimeException("Unable to verify SNS notification signature.", e);
+        }
+    }
+
+    /**
+     * Build the canonical string to sign of a Notification message as documented by SNS. Subject is only included
+     * when it is present.
+     */
+    static String buildStringToSign(SnsRecordContent notification) {
+        StringBuilder builder = new StringBuilder();
+        appendField(builder, "Message", notification.getMessage());
+        appendField(builder, "MessageId", notification.getMessageId());
+        if (notification.getSubject() != null) {
+            appendField(builder, "Subject", notification.getSubject());
+        }
+        appendField(builder, "Timestamp", notification.getTimestamp());
+        appendField(builder, "TopicArn", notification.getTopicArn());
+        appendField(builder, "Type", notification.getType());
+        return builder.toString();
+    }
+
+    private static void appendField(StringBuilder builder, String name, String value) {
+        if (value == null) {
+            throw new RuntimeException(String.format("SNS notification is missing field %s required for signature " +
+                    "verification.", name));
+        }
+        builder.append(name).append('\n').append(value).append('\n');
+    }
+
+    private static String getSignatureAlgorithm(String signatureVersion) {
+        if ("1".equals(signatureVersion)) {
+            return "SHA1withRSA";
+        } else if ("2".equals(signatureVersion)) {
+            return "SHA256withRSA";
+        }
+        throw new RuntimeException("Unsupported SNS signature version: " + signatureVersion);
+    }
+
+    /**
+     * Put a certificate into the cache without fetching it, e.g. a local certificate in benchmarks.
+     */
+    static void cacheCertificate(String signingCertUrl, X509Certificate certificate) {
+        certificateCache.put(signingCertUrl, certificate);
+    }
+
+    private static X509Certificate getCertificate(String signingCertUrl, String topicArn) {
+        if (signingCertUrl == null || topicArn == null) {
+            throw new RuntimeException("SNS notification is missing SigningCertUrl or TopicArn.");
+        }
+
+        X509Certificate certificate;
+        try {
+            certificate = certificateCache.get(signingCertUrl, () -> {
+                URI certificateUri = validateCertificateUrl(signingCertUrl, topicArn);
+                return fetchCertificate(certificateUri);
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to retrieve SNS signing certificate " + signingCertUrl, e.getCause());
+        }
+
+        try {
+            certificate.checkValidity();
+        } catch (CertificateException e) {
+            certificateCache.invalidate(signingCertUrl);
+            throw new RuntimeException("SNS signing certificate is no longer valid: " + signingCertUrl, e);
+        }
+        return certificate;
+    }
+
+    /**
+     * Pin the certificate location to the SNS endpoint of the topic's region, so a forged notification cannot point
+     * the verifier at a certificate it controls.
+     */
+    static URI validateCertificateUrl(String signingCertUrl, String topicArn) {
+        URI uri = URI.create(signingCertUrl);
+        String expectedHost = getExpectedSnsHost(ArnParser.getRegion(topicArn));
+        if (!"https".equals(uri.getScheme())
+                || !expectedHost.equals(uri.getHost())
+                || uri.getPort() != -1
+                || uri.getPath() == null
+                || !CERTIFICATE_PATH_PATTERN.matcher(uri.getPath()).matches()) {
+            throw new RuntimeException(String.format("SigningCertUrl %s is not an SNS certificate of host %s",
+                    signingCertUrl, expectedHost));
+        }
+        return uri;
+    }
+
+    private static String getExpectedSnsHost(String regionName) {
+        Region region = RegionUtils.getRegion(regionName);
+        String domain = region != null ? region.getDomain() : "amazonaws.com";
+        return String.format("sns.%s.%s", regionName, domain);
+    }
+
+    private static X509Certificate fetchCertificate(URI certificateUri) throws IOException, GeneralSecurityException {
+        log.info("Fetching SNS signing certificate " + certificateUri);
+        HttpResponse response = httpClient.execute(new HttpGet(certificateUri));
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 200) {
+            // Release the connection, the error body is of no use.
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new IOException(String.format("Received status code %d when fetching %s", statusCode, certificateUri));
+        }
+
+        X509Certificate certificate;
+        try (InputStream content = response.getEntity().getContent()) {
+            certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(content);
+        }
+        certificate.checkValidity();
+        verifyCommonName(certificate);
+        return certificate;
+    }
+
+    static void verifyCommonName(X509Certificate certificate) throws GeneralSecurityException {
+        try {
+            LdapName subject = new LdapName(certificate.getSubjectX500Principal().getName());
+            for (Rdn rdn : subject.getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType()) && SNS_CERTIFICATE_COMMON_NAME.equals(rdn.getValue())) {
+                    return;
+                }
+            }
+        } catch (InvalidNameException e) {
+            throw new GeneralSecurityException("Unable to parse SNS signing certificate subject.", e);
+        }
+        throw new GeneralSecurityException("SNS signing certificate was not issued to " + SNS_CERTIFICATE_COMMON_NAME);
+    }
+}
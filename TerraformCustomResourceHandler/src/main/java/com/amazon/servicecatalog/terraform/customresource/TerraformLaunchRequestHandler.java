@@ -22,16 +22,15 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
+import com.amazon.servicecatalog.terraform.customresource.facades.AwsClientRegistry;
 import com.amazon.servicecatalog.terraform.customresource.fulfillment.EnvConfig;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
 import com.amazon.servicecatalog.terraform.customresource.util.ArnParser;
-import com.amazonaws.Response;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
 import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClientBuilder;
-import com.amazonaws.services.sns.model.AmazonSNSException;
-import com.amazonaws.services.sns.model.AuthorizationErrorException;
 import com.amazonaws.services.sns.model.MessageAttributeValue;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.google.common.base.Splitter;
@@ -48,6 +47,10 @@ public class TerraformLaunchRequestHandler implements RequestStreamHandler {
 
     @Override
     public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) {
+        Deadline.fromContext(context).run(() -> forwardRequest(inputStream, context));
+    }
+
+    private void forwardRequest(InputStream inputStream, Context context) {
         MessageAttributeValue accountIdValue = new MessageAttributeValue()
                 .withDataType("String")
                 .withStringValue(getAccountId(context));
@@ -58,7 +61,7 @@ public class TerraformLaunchRequestHandler implements RequestStreamHandler {
         String cfnRequest = toRequestString(inputStream);
 
         try {
-            publishNotification(hubSnsTopicArn, cfnRequest, messageAttributes);
+            publishNotification(hubSnsTopicArn, toMessage(hubSnsTopicArn, cfnRequest), messageAttributes);
         } catch (RuntimeException e) {
             CustomResourceRequest request = CustomResourceMarshaller.readCustomResourceRequest(cfnRequest, true);
             String message = String.format("Unable to publish SNS notification to hub account SNS topic. %s",
@@ -67,6 +70,21 @@ public class TerraformLaunchRequestHandler implements RequestStreamHandler {
         }
     }
 
+    /**
+     * Claim-check large requests in the hub's claim check bucket, which is in the region of the hub topic. If that
+     * fails the request is sent inline, which only fails if it exceeds the SNS message size.
+     */
+    private String toMessage(String hubSnsTopicArn, String cfnRequest) {
+        ClaimCheckStore claimChecks = ClaimCheckStore.fromEnvironmentVariables(
+                AwsClientRegistry.s3(ArnParser.getRegion(hubSnsTopicArn)));
+        try {
+            return claimChecks.toMessage(cfnRequest);
+        } catch (RuntimeException e) {
+            log.warn("Unable to claim-check the request, sending it inline.", e);
+            return cfnRequest;
+        }
+    }
+
     private String getAccountId(Context context) {
         String lambdaArn = context.getInvokedFunctionArn();
         return ArnParser.getAccountId(lambdaArn);
@@ -83,14 +101,12 @@ public class TerraformLaunchRequestHandler implements RequestStreamHandler {
     private void publishNotification(String hubSnsTopicArn, String cfnRequest,
                                      Map<String, MessageAttributeValue> messageAttributes) {
         String region = ArnParser.getRegion(hubSnsTopicArn);
-        AmazonSNS sns = AmazonSNSClientBuilder.standard()
-                .withRegion(region)
-                .build();
-        sns.publish(new PublishRequest()
+        AmazonSNS sns = AwsClientRegistry.sns(region);
+        sns.publish(Deadline.bound(new PublishRequest()
                 .withTopicArn(hubSnsTopicArn)
                 .withMessage(cfnRequest)
                 .withSubject("AWS CloudFormation custom resource request with requester AccountId")
                 .withMessageAttributes(messageAttributes)
-        );
+        ));
     }
 }
@@ -15,151 +15,478 @@
 
 package com.amazon.servicecatalog.terraform.customresource;
 
-import static com.amazon.servicecatalog.terraform.customresource.TerraformLaunchRequestHandler.ACCOUNT_ID_ATTRIBUTE_KEY;
-
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.ThreadContext;
 
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller.ParsedSnsRequest;
+import com.amazon.servicecatalog.terraform.customresource.facades.AwsClientRegistry;
 import com.amazon.servicecatalog.terraform.customresource.facades.CloudFormationFacade;
+import com.amazon.servicecatalog.terraform.customresource.facades.Ec2Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.S3Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
 import com.amazon.servicecatalog.terraform.customresource.facades.StsFacade;
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.CommandRecordStoreMode;
 import com.amazon.servicecatalog.terraform.customresource.fulfillment.CommandSender;
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.CommandSender.PreparedDispatch;
 import com.amazon.servicecatalog.terraform.customresource.fulfillment.EnvConfig;
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.model.CommandCompletion;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
 import com.amazon.servicecatalog.terraform.customresource.model.RequestType;
-import com.amazon.servicecatalog.terraform.customresource.model.TerraformResourceProperties;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
 import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
-import com.amazon.servicecatalog.terraform.customresource.util.ArnParser;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordResult;
+import com.amazon.servicecatalog.terraform.customresource.persistence.AppliedConfigurationStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.CommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.DispatchRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazon.servicecatalog.terraform.customresource.util.ParallelStage;
+import com.amazon.servicecatalog.terraform.customresource.validation.RequestValidator;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
-import com.amazonaws.services.s3.AmazonS3URI;
-import com.google.common.base.Splitter;
-import com.google.common.io.CharStreams;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
 public class TerraformRequestHandler implements RequestStreamHandler {
 
+    private static final int MAX_CONCURRENT_RECORDS = 8;
+    // CloudFormation waits an hour for the response of a custom resource, so a request is failed well before that.
+    private static final long MAX_QUEUE_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(45);
+
+    private static final ExecutorService recordExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_RECORDS,
+            new ThreadFactoryBuilder().setNameFormat("sns-record-%d").setDaemon(true).build());
+
     @Override
     public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) {
-        String requestString = toRequestString(inputStream);
-        log.trace("Original unparsed input:\n" + requestString);
+        // All AWS calls and response posts of the invocation are bounded by its deadline, see Deadline.
+        Deadline.fromContext(context).run(() -> handleNotification(inputStream, outputStream, context));
+    }
 
-        SnsRecordContent recordContent;
-        CustomResourceRequest request;
+    private void handleNotification(InputStream inputStream, OutputStream outputStream, Context context) {
+        RequestValidator validator = RequestValidator.fromEnvironmentVariables();
+        ClaimCheckStore claimChecks = ClaimCheckStore.fromEnvironmentVariables(AwsClientRegistry.s3());
+        List<ParsedSnsRequest> parsedRequests;
+        // Parsing covers all records of the notification, so its latency is reported without dimensions.
+        StageMetrics parseMetrics = new StageMetrics(ImmutableMap.of());
+        long parseStartNanos = System.nanoTime();
         try {
-            recordContent = CustomResourceMarshaller.readSnsRecordContent(requestString, false);
-            request = CustomResourceMarshaller.readCustomResourceRequest(recordContent, false);
+            parsedRequests = parseMetrics.call(
+                    () -> CustomResourceMarshaller.readSnsRequests(inputStream, claimChecks, validator));
         } catch (RuntimeException e) {
-            log.error("Failed to parse request.", e);
+            log.error("Unexpected error parsing request.", e);
+            return;
+        } finally {
+            parseMetrics.record("Parse", System.nanoTime() - parseStartNanos);
+            parseMetrics.emit();
+        }
+
+        List<SnsRecordResult> results = processRecords(context, parsedRequests);
+        log.info("SNS record results: " + results);
+        CustomResourceMarshaller.write(results, outputStream);
+    }
+
+    /**
+     * Process all records of the notification. Records are independent, so each one is validated, dispatched and
+     * failed on its own, concurrently when there is more than one.
+     */
+    private List<SnsRecordResult> processRecords(Context context, List<ParsedSnsRequest> parsedRequests) {
+        if (parsedRequests.size() == 1) {
+            return ImmutableList.of(processRecord(context, parsedRequests.get(0)));
+        }
+
+        // Carry the logging context (e.g. AWSRequestId) and the deadline over to the worker threads.
+        Map<String, String> threadContext = ThreadContext.getImmutableContext();
+        Deadline deadline = Deadline.current();
+        List<Future<SnsRecordResult>> futures = parsedRequests.stream()
+                .map(parsedRequest -> recordExecutor.submit(() -> {
+                    ThreadContext.putAll(threadContext);
+                    try {
+                        return deadline.call(() -> processRecord(context, parsedRequest));
+                    } finally {
+                        ThreadContext.clearMap();
+                    }
+                }))
+                .collect(ImmutableList.toImmutableList());
+
+        ImmutableList.Builder<SnsRecordResult> results = ImmutableList.builder();
+        for (int i = 0; i < futures.size(); i++) {
             try {
-                recordContent = CustomResourceMarshaller.readSnsRecordContent(requestString, true);
-                request = CustomResourceMarshaller.readCustomResourceRequest(recordContent, true);
-                ResponsePoster.postFailure(request, "Failed to parse request: " + e.getMessage());
-            } catch (RuntimeException ex) {
-                log.error("Unexpected error parsing request or posting failure response.", ex);
+                results.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("Unexpected error processing SNS record.", e);
+                results.add(failedResult(parsedRequests.get(i), e.getMessage()));
             }
-            return;
+        }
+        return results.build();
+    }
+
+    private SnsRecordResult processRecord(Context context, ParsedSnsRequest parsedRequest) {
+        if (parsedRequest.getParseError() != null) {
+            log.error("Unexpected error parsing request.", parsedRequest.getParseError());
+            return failedResult(parsedRequest, "Failed to parse request: " + parsedRequest.getParseError().getMessage());
+        }
+
+        if (parsedRequest.getCommandCompletion() != null) {
+            StageMetrics metrics = new StageMetrics(ImmutableMap.of("RequestType", CommandCompletion.MESSAGE_TYPE));
+            long startNanos = System.nanoTime();
+            try {
+                return metrics.call(() -> handleCommandCompletion(context, parsedRequest));
+            } finally {
+                metrics.record("HandleRecord", System.nanoTime() - startNanos);
+                metrics.emit();
+            }
+        }
+
+        CustomResourceRequest request = parsedRequest.getRequest();
+        StageMetrics metrics = new StageMetrics(ImmutableMap.of("RequestType", request.getRequestType().name()),
+                ImmutableMap.of("AccountId", request.getParsedStackId().getAccountId()));
+        long startNanos = System.nanoTime();
+        try {
+            return metrics.call(() -> handleRecord(context, parsedRequest));
+        } finally {
+            metrics.record("HandleRecord", System.nanoTime() - startNanos);
+            metrics.emit();
+        }
+    }
+
+    private SnsRecordResult handleRecord(Context context, ParsedSnsRequest parsedRequest) {
+        SnsRecordContent recordContent = parsedRequest.getRecordContent();
+        CustomResourceRequest request = parsedRequest.getRequest();
+        log.trace("Parsed input:\n" + recordContent);
+
+        // Verified before anything is posted to the ResponseURL or done for the stack, which an unverified message
+        // must not be able to trigger. This is cheap with the cached certificate.
+        try {
+            verifySnsSignature(recordContent);
+        } catch (RuntimeException e) {
+            log.error("Unable to verify the request.", e);
+            return failedResult(parsedRequest, e.getMessage());
+        }
+
+        if (!parsedRequest.getStrictModeViolations().isEmpty()) {
+            String message = "Failed to parse request: " + String.join("; ", parsedRequest.getStrictModeViolations());
+            log.error(message);
+            postFailure(request, message);
+            return failedResult(parsedRequest, message);
+        }
+
+        // Validated while parsing, so we don't send unnecessary commands to SSM
+        if (!parsedRequest.getValidationErrors().isEmpty()) {
+            String message = String.join("; ", parsedRequest.getValidationErrors());
+            log.error("Invalid request: " + message);
+            postFailure(request, message);
+            return failedResult(parsedRequest, message);
         }
 
         try {
-            // Best-effort validation so we don't send unnecessary commands to SSM
-            TerraformResourceProperties properties = request.getResourceProperties();
-            properties.validateFields();
-            verifyNoCrossAccountAccess(properties, recordContent);
-            CustomResourceMarshaller.verifySnsSignature(recordContent);
-            handle(context, request);
+            handle(context, request, false, null);
+            return handledResult(recordContent, request);
         } catch (RuntimeException e) {
-            ResponsePoster.postFailure(request, e.getMessage());
             log.error("Unexpected error encountered when handling the request.", e);
+            postFailure(request, e.getMessage());
+            dispatchRequestQueuedBehind(context, request);
+            return failedResult(parsedRequest, e.getMessage());
         }
     }
 
-    private void handle(Context context, CustomResourceRequest request) {
+    /**
+     * Dispatch the request queued for the stack whose command completed, if any. The completion was published by the
+     * fulfillment server, so nothing is posted back for it, only the queued request is answered.
+     */
+    private SnsRecordResult handleCommandCompletion(Context context, ParsedSnsRequest parsedRequest) {
+        SnsRecordContent recordContent = parsedRequest.getRecordContent();
+        CommandCompletion completion = parsedRequest.getCommandCompletion();
+        if (!parsedRequest.getStrictModeViolations().isEmpty()) {
+            String message = "Failed to parse command completion: "
+                    + String.join("; ", parsedRequest.getStrictModeViolations());
+            log.error(message);
+            return failedResult(parsedRequest, message);
+        }
+        try {
+            verifySnsSignature(recordContent);
+        } catch (RuntimeException e) {
+            log.error("Unable to verify the command completion.", e);
+            return failedResult(parsedRequest, e.getMessage());
+        }
+        // Only the fulfillment servers may publish to the completion topic, whose ARN is covered by the signature. The
+        // launch roles of the spoke accounts may publish to the request topic, so a completion from there is forged.
         EnvConfig envConfig = EnvConfig.fromEnvironmentVariables();
-        String externalId = StsFacade.getExternalId(context);
-        AWSCredentialsProvider launchRoleCredentials = getLaunchRoleCredentials(externalId, request);
+        String completionTopicArn = envConfig.getCommandCompletionTopicArn();
+        if (completionTopicArn == null || !completionTopicArn.equals(recordContent.getTopicArn())) {
+            String message = "Command completions are only accepted from the command completion topic, not from "
+                    + recordContent.getTopicArn();
+            log.error(message);
+            return failedResult(parsedRequest, message);
+        }
 
-        // Since Terraform doesn't handle rollback, we no-op for rollback cases. Simply post success.
-        CloudFormationFacade cfnFacade = getCfnFacade(request, launchRoleCredentials);
-        if (request.getRequestType() == RequestType.UPDATE && cfnFacade.isStackInUpdateRollback(request.getStackId())) {
-            ResponsePoster.postSuccess(request);
-            return;
+        CommandRecordStore commandRecordStore = CommandRecordStoreMode.getStore(envConfig);
+        CustomResourceRequest queuedRequest = getQueuedRequest(commandRecordStore, completion.getPhysicalResourceId());
+        if (queuedRequest == null) {
+            log.info(String.format("Command of request %s completed, no request is queued for resource %s.",
+                    completion.getRequestId(), completion.getPhysicalResourceId()));
+            return handledResult(recordContent, null);
         }
 
-        verifyWhitelistedTerraformArtifactSource(request.getResourceProperties(), envConfig);
-        CommandSender commandSender = new CommandSender(request, envConfig, externalId);
-        commandSender.sendCommand();
+        log.info(String.format("Command of request %s completed, dispatching queued request %s.",
+                completion.getRequestId(), queuedRequest.getRequestId()));
+        try {
+            handle(context, queuedRequest, true, completion);
+            return handledResult(recordContent, queuedRequest);
+        } catch (RuntimeException e) {
+            log.error("Unexpected error encountered when handling the queued request.", e);
+            postFailure(queuedRequest, e.getMessage());
+            dispatchRequestQueuedBehind(context, queuedRequest);
+            return SnsRecordResult.builder()
+                    .messageId(recordContent.getMessageId())
+                    .requestId(queuedRequest.getRequestId())
+                    .status(SnsRecordResult.Status.FAILED)
+                    .reason(e.getMessage())
+                    .build();
+        }
     }
 
-    private String toRequestString(InputStream inputStream) {
+    /**
+     * Dispatch the request queued for the stack after the dispatch of another request for it failed. The failed
+     * dispatch sent no command, so no completion would ever dispatch a request that was queued behind it. The queued
+     * request is only sent if no command is executing or being dispatched for the stack, otherwise it stays queued. A
+     * queued request that fails as well is answered with its failure, and the next one is tried.
+     *
+     * @param failedRequest the request whose dispatch failed
+     */
+    private void dispatchRequestQueuedBehind(Context context, CustomResourceRequest failedRequest) {
         try {
-            return CharStreams.toString(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            EnvConfig envConfig = EnvConfig.fromEnvironmentVariables();
+            if (envConfig.getCommandCompletionTopicArn() == null) {
+                return;
+            }
+            CommandRecordStore commandRecordStore = CommandRecordStoreMode.getStore(envConfig);
+            CustomResourceRequest failed = failedRequest;
+            while (true) {
+                CustomResourceRequest queuedRequest = getQueuedRequest(commandRecordStore,
+                        failed.getPhysicalResourceId());
+                if (queuedRequest == null || queuedRequest.getRequestId().equals(failed.getRequestId())) {
+                    return;
+                }
+                log.info(String.format("Dispatch of request %s failed, dispatching queued request %s.",
+                        failed.getRequestId(), queuedRequest.getRequestId()));
+                try {
+                    handle(context, queuedRequest, true, null);
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error encountered when handling the queued request.", e);
+                    postFailure(queuedRequest, e.getMessage());
+                    failed = queuedRequest;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error(String.format("Unable to dispatch the request queued behind request %s.",
+                    failedRequest.getRequestId()), e);
         }
     }
 
-    private static AWSCredentialsProvider getLaunchRoleCredentials(String externalId, CustomResourceRequest request) {
-        String launchRoleArn = request.getResourceProperties().getLaunchRoleArn();
-        return new StsFacade().getCredentialsProvider(launchRoleArn, externalId);
+    /**
+     * Entry point of the scheduled sweep of the requests queued for all stacks. A queued request is dispatched by the
+     * completion its command publishes, which never comes if the fulfillment server was lost, SSM timed the command
+     * out, or the server is not allowed to publish to the topic, or if the Lambda stopped before the lease it waits
+     * for was written or released. The sweep dispatches such a request once no command is executing or being
+     * dispatched for its stack, and fails a request that waited so long that CloudFormation would give up on it.
+     */
+    public void sweepQueuedRequests(InputStream inputStream, OutputStream outputStream, Context context) {
+        StageMetrics metrics = new StageMetrics(ImmutableMap.of("RequestType", "QueueSweep"));
+        try {
+            Deadline.fromContext(context).run(() -> metrics.run(() -> sweep(context)));
+        } finally {
+            metrics.emit();
+        }
     }
 
-    private static CloudFormationFacade getCfnFacade(CustomResourceRequest request, AWSCredentialsProvider launchRoleCredentials) {
-        String stackId = request.getStackId();
-        Regions stackRegion = Regions.fromName(Splitter.on(':').splitToList(stackId).get(3));
-        return new CloudFormationFacade(stackRegion, launchRoleCredentials);
+    private void sweep(Context context) {
+        EnvConfig envConfig = EnvConfig.fromEnvironmentVariables();
+        CommandRecordStore commandRecordStore = CommandRecordStoreMode.getStore(envConfig);
+        List<String> physicalResourceIds = StageMetrics.time("ListCommandRecords",
+                commandRecordStore::listPhysicalResourceIds);
+        log.info(String.format("Sweeping the queues of %d stacks.", physicalResourceIds.size()));
+        for (String physicalResourceId : physicalResourceIds) {
+            if (Deadline.current().getRemainingMillis() < Deadline.MAX_CALL_MILLIS) {
+                log.warn("Not enough time left to sweep the remaining stacks, they are swept by the next run.");
+                return;
+            }
+            try {
+                sweepQueue(context, envConfig, commandRecordStore, physicalResourceId);
+            } catch (RuntimeException e) {
+                log.error(String.format("Unable to sweep the queue of resource %s.", physicalResourceId), e);
+            }
+        }
     }
 
-    /**
-     * Verify that the S3 bucket of the TerraformArtifactUrl is whitelisted
-     *
-     * @param properties the custom resource request properties
-     * @param envConfig the environment configurations of the Lambda
-     */
-    private void verifyWhitelistedTerraformArtifactSource(TerraformResourceProperties properties, EnvConfig envConfig) {
-        AmazonS3URI s3URI;
+    private void sweepQueue(Context context, EnvConfig envConfig, CommandRecordStore commandRecordStore,
+            String physicalResourceId) {
+        VersionedCommandRecord versionedRecord = StageMetrics.time("GetCommandRecord",
+                () -> commandRecordStore.getCommandRecord(physicalResourceId));
+        if (versionedRecord == null || versionedRecord.getRecord().getQueuedRequest() == null) {
+            return;
+        }
+        TerraformCommandRecord record = versionedRecord.getRecord();
+        CustomResourceRequest queuedRequest = CustomResourceMarshaller.readCustomResourceRequest(
+                record.getQueuedRequest(), true);
+
+        if (record.getQueuedAt() > 0 && System.currentTimeMillis() - record.getQueuedAt() > MAX_QUEUE_WAIT_MILLIS) {
+            String message = String.format("Timed out waiting for the Terraform command of request %s for this " +
+                    "resource, which did not report its completion.", record.getRequestId());
+            log.warn(String.format("Request %s: %s", queuedRequest.getRequestId(), message));
+            CommandSender commandSender = newCommandSender(queuedRequest, envConfig, StsFacade.getExternalId(context));
+            // Only answered once removed, it may have been dispatched in the meantime.
+            if (commandSender.discardQueuedRequest()) {
+                postFailure(queuedRequest, message);
+            }
+            return;
+        }
+
+        log.info(String.format("Checking queued request %s of resource %s.", queuedRequest.getRequestId(),
+                physicalResourceId));
         try {
-            s3URI = new AmazonS3URI(properties.getTerraformArtifactUrl());
-        } catch (IllegalArgumentException e) {
-            throw new RuntimeException("Invalid TerraformArtifactUrl. " + e.getMessage());
+            handle(context, queuedRequest, true, null);
+        } catch (RuntimeException e) {
+            log.error("Unexpected error encountered when handling the queued request.", e);
+            postFailure(queuedRequest, e.getMessage());
+            dispatchRequestQueuedBehind(context, queuedRequest);
+        }
+    }
+
+    private static CustomResourceRequest getQueuedRequest(CommandRecordStore commandRecordStore,
+            String physicalResourceId) {
+        // The near cache may still hold the record as it was before a request was queued on another container.
+        commandRecordStore.invalidate(physicalResourceId);
+        VersionedCommandRecord versionedRecord = StageMetrics.time("GetCommandRecord",
+                () -> commandRecordStore.getCommandRecord(physicalResourceId));
+        if (versionedRecord == null || versionedRecord.getRecord().getQueuedRequest() == null) {
+            return null;
         }
+        return CustomResourceMarshaller.readCustomResourceRequest(versionedRecord.getRecord().getQueuedRequest(), true);
+    }
 
-        String terraformArtifactBucket = s3URI.getBucket();
-        String whitelistedBucket = envConfig.getTerraformArtifactS3Bucket();
-        if (!whitelistedBucket.equals(terraformArtifactBucket)) {
-            String message = String.format("Invalid TerraformArtifactUrl. TerraformArtifacts must be contained in the" +
-                    " following bucket: %s", whitelistedBucket);
-            throw new RuntimeException(message);
+    private static SnsRecordResult handledResult(SnsRecordContent recordContent, CustomResourceRequest request) {
+        return SnsRecordResult.builder()
+                .messageId(recordContent.getMessageId())
+                .requestId(request != null ? request.getRequestId() : null)
+                .status(SnsRecordResult.Status.HANDLED)
+                .build();
+    }
+
+    private static void postFailure(CustomResourceRequest request, String reason) {
+        try {
+            ResponsePoster.postFailure(request, reason);
+        } catch (RuntimeException e) {
+            log.error("Unexpected error posting failure response.", e);
         }
     }
 
+    private static SnsRecordResult failedResult(ParsedSnsRequest parsedRequest, String reason) {
+        return SnsRecordResult.builder()
+                .messageId(parsedRequest.getRecordContent().getMessageId())
+                .requestId(parsedRequest.getRequest() != null ? parsedRequest.getRequest().getRequestId() : null)
+                .status(SnsRecordResult.Status.FAILED)
+                .reason(reason)
+                .build();
+    }
+
     /**
-     * Prevent cross-account access by verifying that the account of the user making the request (identified by the
-     * AccountId SNS attribute) matches the account where the resources will be created (identified the the account
-     * of the LaunchRoleARN).
-     *
-     * @param properties the custom resource request properties of the SNS notification
-     * @param recordContent the record content of the SNS notification
+     * @param queued whether the request is the one queued for the stack, rather than received from CloudFormation
+     * @param completion the completion that triggered the dispatch of the queued request, or null
      */
-    private void verifyNoCrossAccountAccess(TerraformResourceProperties properties, SnsRecordContent recordContent) {
-        String launchRoleArn = properties.getLaunchRoleArn();
-        String launchRoleAccountId = ArnParser.getAccountId(launchRoleArn);
+    private void handle(Context context, CustomResourceRequest request, boolean queued, CommandCompletion completion) {
+        EnvConfig envConfig = EnvConfig.fromEnvironmentVariables();
+        String externalId = StsFacade.getExternalId(context);
 
-        String requesterAccountId = Optional.ofNullable(recordContent.getMessageAttributes())
-                .map(attributes -> attributes.get(ACCOUNT_ID_ATTRIBUTE_KEY))
-                .map(SnsRecordContent.AttributeValue::getValue)
-                .orElseThrow(() -> new RuntimeException("SNS input message does not contain AccountId attribute"));
+        // The remaining checks and lookups only read, so they run concurrently and SendCommand is issued once all
+        // of them passed.
+        CommandSender commandSender = newCommandSender(request, envConfig, externalId);
+        ParallelStage prelude = new ParallelStage();
+        Future<Boolean> inUpdateRollback = prelude.fork(() -> isStackInUpdateRollback(request, externalId));
+        PreparedDispatch dispatch = commandSender.prepare(prelude);
+        try {
+            // Since Terraform doesn't handle rollback, we no-op for rollback cases. Simply post success. A rollback
+            // does not depend on the dispatch lookups, so it is decided before any of them can fail the request.
+            if (prelude.await(inUpdateRollback)) {
+                prelude.cancel();
+                ResponsePoster.postSuccess(request);
+                if (queued) {
+                    commandSender.discardQueuedRequest();
+                }
+                return;
+            }
+            prelude.join();
+            if (queued) {
+                commandSender.sendQueuedCommand(dispatch, completion);
+            } else {
+                commandSender.sendCommand(dispatch);
+            }
+        } catch (RuntimeException e) {
+            // The request is answered with a failure, so it must not be dispatched by a later completion, also if it
+            // was queued before the failure.
+            commandSender.discardQueuedRequest();
+            throw e;
+        }
+    }
+
+    private static CommandSender newCommandSender(CustomResourceRequest request, EnvConfig envConfig,
+            String externalId) {
+        return new CommandSender(request, envConfig, externalId,
+                new Ec2Facade(AwsClientRegistry.ec2()),
+                new SsmFacade(AwsClientRegistry.ssm()),
+                new S3Facade(AwsClientRegistry.s3()),
+                CommandRecordStoreMode.getStore(envConfig),
+                new AppliedConfigurationStore(AwsClientRegistry.s3(), envConfig.getCommandOutputS3Bucket()),
+                new DispatchRecordStore(AwsClientRegistry.s3(), envConfig.getCommandRecordS3Bucket()),
+                ClaimCheckStore.fromEnvironmentVariables(AwsClientRegistry.s3()));
+    }
 
-        if (!requesterAccountId.equals(launchRoleAccountId)) {
-            throw new RuntimeException("To prevent permissions escalation TerraformStacks cannot use a LaunchRoleArn " +
-                    "that references another account.");
+    private static void verifySnsSignature(SnsRecordContent recordContent) {
+        StageMetrics.time("VerifySnsSignature", () -> CustomResourceMarshaller.verifySnsSignature(recordContent));
+    }
+
+    private static boolean isStackInUpdateRollback(CustomResourceRequest request, String externalId) {
+        if (request.getRequestType() != RequestType.UPDATE) {
+            return false;
+        }
+        AWSCredentialsProvider launchRoleCredentials = getLaunchRoleCredentials(externalId, request);
+        // Resolve the session credentials up front, so AssumeRole is not counted as part of DescribeStacks.
+        StageMetrics.time("AssumeRole", launchRoleCredentials::getCredentials);
+        try (AwsClientRegistry.Lease<AmazonCloudFormation> cloudFormation =
+                getCloudFormation(request, externalId, launchRoleCredentials)) {
+            return new CloudFormationFacade(cloudFormation.get()).isStackInUpdateRollback(request.getStackId());
         }
     }
+
+    private static AWSCredentialsProvider getLaunchRoleCredentials(String externalId, CustomResourceRequest request) {
+        String launchRoleArn = request.getResourceProperties().getLaunchRoleArn();
+        return new StsFacade(AwsClientRegistry.sts()).getCredentialsProvider(launchRoleArn, externalId);
+    }
+
+    private static AwsClientRegistry.Lease<AmazonCloudFormation> getCloudFormation(CustomResourceRequest request,
+            String externalId,
+            AWSCredentialsProvider launchRoleCredentials) {
+        Regions stackRegion = Regions.fromName(request.getParsedStackId().getRegion());
+        // Clients are shared per launch role, so the credentials identity is the role and the external ID.
+        String credentialsId = request.getResourceProperties().getLaunchRoleArn() + "/" + externalId;
+        return AwsClientRegistry.cloudFormation(stackRegion, credentialsId, launchRoleCredentials);
+    }
 }
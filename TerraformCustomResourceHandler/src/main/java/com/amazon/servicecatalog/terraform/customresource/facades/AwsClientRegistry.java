@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.facades;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClientBuilder;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClientBuilder;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Container-wide registry of AWS SDK clients, keyed by service, region and credentials identity.
+ *
+ * SDK clients are thread-safe and expensive to build (connection pool, TLS handshake, credential chain lookup), so
+ * they are built once and shared across warm Lambda invocations instead of being rebuilt for every request.
+ *
+ * Clients of launch-role credentials are leased, since they are evicted once there are too many of them. An evicted
+ * client is shut down when the last lease on it is closed, so a call that is still using it on another thread does not
+ * fail with a closed connection pool.
+ *
+ * All clients time out calls after the per-call maximums of {@link Deadline}, instead of the SDK defaults, which do
+ * not bound a call. This covers calls the SDK makes on its own, such as AssumeRole of the session credentials
+ * providers. The facades bound their calls further by the deadline of the invocation.
+ */
+@Log4j2
+public final class AwsClientRegistry {
+    private static final String DEFAULT_REGION = "default";
+    private static final String DEFAULT_CREDENTIALS = "default";
+    private static final long MAX_LEASED_CLIENTS = 256;
+
+    /**
+     * Clients of the Lambda's own credentials, at most one per service and region, so they are never evicted.
+     */
+    private static final ConcurrentMap<ClientKey, Object> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Clients of launch-role credentials, which grow with the number of roles, so the least recently used are evicted.
+     * An evicted client may still be in use on another thread, so it is only shut down once its last lease is closed.
+     */
+    private static final Cache<ClientKey, LeasedClient> leasedClients = CacheBuilder.newBuilder()
+            .maximumSize(MAX_LEASED_CLIENTS)
+            .removalListener((RemovalListener<ClientKey, LeasedClient>) notification -> notification.getValue().evict())
+            .build();
+
+    private AwsClientRegistry() {}
+
+    public static AmazonEC2 ec2() {
+        return getClient(AmazonEC2.class, DEFAULT_REGION, DEFAULT_CREDENTIALS, () -> AmazonEC2ClientBuilder.standard()
+                .withClientConfiguration(newClientConfiguration())
+                .build());
+    }
+
+    public static AWSSimpleSystemsManagement ssm() {
+        return getClient(AWSSimpleSystemsManagement.class, DEFAULT_REGION, DEFAULT_CREDENTIALS,
+                () -> AWSSimpleSystemsManagementClientBuilder.standard()
+                        .withClientConfiguration(newClientConfiguration())
+                        .build());
+    }
+
+    public static AmazonS3 s3() {
+        return getClient(AmazonS3.class, DEFAULT_REGION, DEFAULT_CREDENTIALS, () -> AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(newClientConfiguration())
+                .build());
+    }
+
+    public static AmazonS3 s3(String region) {
+        return getClient(AmazonS3.class, region, DEFAULT_CREDENTIALS, () -> AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(newClientConfiguration())
+                .withRegion(region)
+                .build());
+    }
+
+    public static AWSSecurityTokenService sts() {
+        return getClient(AWSSecurityTokenService.class, DEFAULT_REGION, DEFAULT_CREDENTIALS,
+                () -> AWSSecurityTokenServiceClientBuilder.standard()
+                        .withClientConfiguration(newClientConfiguration())
+                        .build());
+    }
+
+    public static AmazonSNS sns(String region) {
+        return getClient(AmazonSNS.class, region, DEFAULT_CREDENTIALS, () -> AmazonSNSClientBuilder.standard()
+                .withClientConfiguration(newClientConfiguration())
+                .withRegion(region)
+                .build());
+    }
+
+    /**
+     * Lease a CloudFormation client for the region that signs requests with the given credentials. The lease must be
+     * closed once the client is no longer used.
+     *
+     * @param region the region of the client
+     * @param credentialsId a stable identity of the credentials, e.g. the assumed role ARN and external ID
+     * @param credentials the credentials used if a new client has to be built
+     * @return a lease on a shared CloudFormation client
+     */
+    public static Lease<AmazonCloudFormation> cloudFormation(Regions region,
+            String credentialsId,
+            AWSCredentialsProvider credentials) {
+        return leaseClient(AmazonCloudFormation.class, region.getName(), credentialsId,
+                () -> AmazonCloudFormationClientBuilder.standard()
+                        .withClientConfiguration(newClientConfiguration())
+                        .withCredentials(credentials)
+                        .withRegion(region)
+                        .build());
+    }
+
+    private static ClientConfiguration newClientConfiguration() {
+        return new ClientConfiguration()
+                .withClientExecutionTimeout(Deadline.MAX_CALL_MILLIS)
+                .withRequestTimeout(Deadline.MAX_ATTEMPT_MILLIS);
+    }
+
+    private static <T> T getClient(Class<T> service, String region, String credentialsId, Supplier<T> factory) {
+        ClientKey key = new ClientKey(service.getSimpleName(), region, credentialsId);
+        try {
+            return service.cast(clients.computeIfAbsent(key, k -> {
+                log.info("Building client " + key);
+                return factory.get();
+            }));
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Unable to build AWS client " + key, e);
+        }
+    }
+
+    private static <T> Lease<T> leaseClient(Class<T> service,
+            String region,
+            String credentialsId,
+            Supplier<T> factory) {
+        ClientKey key = new ClientKey(service.getSimpleName(), region, credentialsId);
+        while (true) {
+            LeasedClient leasedClient;
+            try {
+                leasedClient = leasedClients.get(key, () -> {
+                    log.info("Building client " + key);
+                    return new LeasedClient(key, factory.get());
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                throw new RuntimeException("Unable to build AWS client " + key, e.getCause());
+            }
+            if (leasedClient.acquire()) {
+                return new Lease<>(service.cast(leasedClient.getClient()), leasedClient);
+            }
+            // Evicted and shut down since it was looked up, the next lookup builds a new client.
+        }
+    }
+
+    /**
+     * A client in use by the caller, see {@link #cloudFormation(Regions, String, AWSCredentialsProvider)}.
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final T client;
+        private final LeasedClient leasedClient;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(T client, LeasedClient leasedClient) {
+            this.client = client;
+            this.leasedClient = leasedClient;
+        }
+
+        public T get() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                leasedClient.release();
+            }
+        }
+    }
+
+    /**
+     * A client of the registry and the number of open leases on it.
+     */
+    private static final class LeasedClient {
+        private final ClientKey key;
+        private final Object client;
+        private int leases;
+        private boolean evicted;
+        private boolean shutDown;
+
+        LeasedClient(ClientKey key, Object client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        Object getClient() {
+            return client;
+        }
+
+        /**
+         * @return whether the lease was taken, false if the client was already shut down
+         */
+        synchronized boolean acquire() {
+            if (shutDown) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            shutDownIfUnused();
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            shutDownIfUnused();
+        }
+
+        private void shutDownIfUnused() {
+            if (evicted && leases == 0 && !shutDown) {
+                shutDown = true;
+                log.info("Shutting down evicted client " + key);
+                if (client instanceof AmazonWebServiceClient) {
+                    ((AmazonWebServiceClient) client).shutdown();
+                }
+            }
+        }
+    }
+
+    @Value
+    private static class ClientKey {
+        private String service;
+        private String region;
+        private String credentialsId;
+    }
+}
@@ -17,10 +17,9 @@ package com.amazon.servicecatalog.terraform.customresource.facades;
 
 import java.util.List;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.regions.Regions;
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
-import com.amazonaws.services.cloudformation.AmazonCloudFormationClientBuilder;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
 import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
 import com.amazonaws.services.cloudformation.model.Stack;
@@ -30,24 +29,21 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2
 public class CloudFormationFacade {
 
+    private static final String UPDATE_ROLLBACK_IN_PROGRESS = "UPDATE_ROLLBACK_IN_PROGRESS";
+
     private AmazonCloudFormation cloudformation;
 
-    public CloudFormationFacade(Regions region, AWSCredentialsProvider credentials) {
-        this.cloudformation = AmazonCloudFormationClientBuilder.standard()
-                .withCredentials(credentials)
-                .withRegion(region)
-                .build();
+    public CloudFormationFacade(AmazonCloudFormation cloudformation) {
+        this.cloudformation = cloudformation;
     }
 
     public boolean isStackInUpdateRollback(String stackId) {
-        Stack stack = describeStack(stackId);
-        return "UPDATE_ROLLBACK_IN_PROGRESS".equals(stack.getStackStatus());
+        DescribeStacksRequest request = Deadline.bound(new DescribeStacksRequest().withStackName(stackId));
+        Stack stack = getStack(stackId, StageMetrics.time("DescribeStacks", () -> cloudformation.describeStacks(request)));
+        return UPDATE_ROLLBACK_IN_PROGRESS.equals(stack.getStackStatus());
     }
 
-    private Stack describeStack(String stackId) {
-        DescribeStacksRequest request = new DescribeStacksRequest().withStackName(stackId);
-        DescribeStacksResult result = cloudformation.describeStacks(request);
-
+    private static Stack getStack(String stackId, DescribeStacksResult result) {
         List<Stack> stacks = result.getStacks();
         if (stacks.isEmpty()) {
             String message = String.format("Invalid stackId. No stack found for %s.", stackId);
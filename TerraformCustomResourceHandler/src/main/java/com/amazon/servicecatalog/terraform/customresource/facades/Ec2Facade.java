@@ -16,52 +16,139 @@
 package com.amazon.servicecatalog.terraform.customresource.facades;
 
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+@Log4j2
 public class Ec2Facade {
 
     private static final Filter RUNNING_INSTANCE_FILTER = new Filter("instance-state-name", ImmutableList.of("running"));
-    private static final Random randomGenerator = new Random();
+    private static final long INVENTORY_REFRESH_SECONDS = 60;
+    private static final long INVENTORY_EXPIRY_SECONDS = 300;
+
+    private static final Executor inventoryRefreshExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ec2-inventory-refresh-%d").setDaemon(true).build());
+
+    /**
+     * Running fulfillment servers per instance tag, shared across invocations. Entries are refreshed in the
+     * background once they are older than the refresh interval (the stale inventory is served meanwhile) and are
+     * dropped if they have not been refreshed within the expiry interval.
+     */
+    private static final LoadingCache<InventoryKey, List<String>> inventoryCache = CacheBuilder.newBuilder()
+            .refreshAfterWrite(INVENTORY_REFRESH_SECONDS, TimeUnit.SECONDS)
+            .expireAfterWrite(INVENTORY_EXPIRY_SECONDS, TimeUnit.SECONDS)
+            .build(CacheLoader.asyncReloading(CacheLoader.from(Ec2Facade::describeRunningInstanceIds),
+                    inventoryRefreshExecutor));
 
     private AmazonEC2 ec2;
 
     public Ec2Facade() {
-        this.ec2 = AmazonEC2ClientBuilder.defaultClient();
+        this(AwsClientRegistry.ec2());
     }
 
-    public String getInstanceId(Tag instanceTag) {
-        Filter tagFilter = new Filter("tag:" + instanceTag.getKey(), ImmutableList.of(instanceTag.getValue()));
-        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(tagFilter, RUNNING_INSTANCE_FILTER);
-        DescribeInstancesResult result = ec2.describeInstances(request);
+    public Ec2Facade(AmazonEC2 ec2) {
+        this.ec2 = ec2;
+    }
 
+    /**
+     * Get the running instances with the tag from the inventory cache.
+     *
+     * @param instanceTag the tag of the fulfillment servers
+     * @return the IDs of the running instances with the tag, never empty
+     */
+    public List<String> getInstanceIds(Tag instanceTag) {
+        InventoryKey key = new InventoryKey(ec2, instanceTag.getKey(), instanceTag.getValue());
         List<String> instanceIds;
-        if (result.getReservations() != null) {
-            instanceIds = result.getReservations().stream()
-                    .flatMap(reservation -> reservation.getInstances().stream())
-                    .map(Instance::getInstanceId)
-                    .collect(ImmutableList.toImmutableList());
-        } else {
-            instanceIds = ImmutableList.of();
+        try {
+            instanceIds = inventoryCache.get(key);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
 
+        return verifyNotEmpty(key, instanceIds);
+    }
+
+    private static List<String> verifyNotEmpty(InventoryKey key, List<String> instanceIds) {
         if (instanceIds.isEmpty()) {
+            // Don't remember an empty fleet, so newly launched servers are picked up by the next request.
+            inventoryCache.invalidate(key);
             String message = String.format(
                     "Invalid FulfillmentConfig. No instances found with TagKey: %s and TagValue: %s",
-                    instanceTag.getKey(),
-                    instanceTag.getValue());
+                    key.getTagKey(),
+                    key.getTagValue());
             throw new RuntimeException(message);
         }
+        return instanceIds;
+    }
+
+    /**
+     * Drop the cached inventory for the tag, e.g. after SSM reported that a cached instance is no longer valid.
+     *
+     * @param instanceTag the tag of the fulfillment servers
+     */
+    public void invalidateInstanceIds(Tag instanceTag) {
+        log.info(String.format("Invalidating cached instances with TagKey: %s and TagValue: %s",
+                instanceTag.getKey(), instanceTag.getValue()));
+        inventoryCache.invalidate(new InventoryKey(ec2, instanceTag.getKey(), instanceTag.getValue()));
+    }
+
+    private static List<String> describeRunningInstanceIds(InventoryKey key) {
+        Filter tagFilter = new Filter("tag:" + key.getTagKey(), ImmutableList.of(key.getTagValue()));
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(tagFilter, RUNNING_INSTANCE_FILTER);
+
+        ImmutableList.Builder<String> instanceIds = ImmutableList.builder();
+        do {
+            Deadline.bound(request);
+            DescribeInstancesResult result = StageMetrics.time("DescribeInstances",
+                    () -> key.getEc2().describeInstances(request));
+            addInstanceIds(result, instanceIds);
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+
+        List<String> inventory = instanceIds.build();
+        log.info(String.format("Loaded %d running instances with TagKey: %s and TagValue: %s",
+                inventory.size(), key.getTagKey(), key.getTagValue()));
+        return inventory;
+    }
+
+    private static void addInstanceIds(DescribeInstancesResult result, ImmutableList.Builder<String> instanceIds) {
+        if (result.getReservations() != null) {
+            result.getReservations().stream()
+                    .map(Reservation::getInstances)
+                    .flatMap(List::stream)
+                    .map(Instance::getInstanceId)
+                    .forEach(instanceIds::add);
+        }
+    }
 
-        int randomIndex = randomGenerator.nextInt(instanceIds.size());
-        return instanceIds.get(randomIndex);
+    @Value
+    private static class InventoryKey {
+        private AmazonEC2 ec2;
+        private String tagKey;
+        private String tagValue;
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.facades;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.model.ArtifactMetadata;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import lombok.Value;
+
+public class S3Facade {
+
+    private static final long ARTIFACT_METADATA_EXPIRY_SECONDS = 30;
+    private static final long MAX_CACHED_ARTIFACTS = 1000;
+
+    /**
+     * The resolved version of each artifact, shared across invocations. Artifacts may be overwritten in place, so
+     * entries expire quickly: a request dispatched within the expiry interval of an overwrite still gets the version
+     * that was current when the entry was loaded.
+     */
+    private static final Cache<ArtifactKey, ArtifactMetadata> artifactMetadataCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(ARTIFACT_METADATA_EXPIRY_SECONDS, TimeUnit.SECONDS)
+            .maximumSize(MAX_CACHED_ARTIFACTS)
+            .build();
+
+    private AmazonS3 s3;
+
+    public S3Facade() {
+        this(AwsClientRegistry.s3());
+    }
+
+    public S3Facade(AmazonS3 s3) {
+        this.s3 = s3;
+    }
+
+    /**
+     * Get the current version of the artifact from the cache, or with a HeadObject call if it is not cached.
+     *
+     * @param bucket the artifact bucket
+     * @param key the artifact key
+     * @return the ETag, version ID and size of the artifact
+     */
+    public ArtifactMetadata getArtifactMetadata(String bucket, String key) {
+        try {
+            return artifactMetadataCache.get(new ArtifactKey(s3, bucket, key), () -> {
+                GetObjectMetadataRequest request = Deadline.bound(new GetObjectMetadataRequest(bucket, key));
+                ObjectMetadata metadata = StageMetrics.time("HeadArtifact", () -> s3.getObjectMetadata(request));
+                return new ArtifactMetadata(metadata.getETag(), metadata.getVersionId(), metadata.getContentLength());
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Value
+    private static class ArtifactKey {
+        private AmazonS3 s3;
+        private String bucket;
+        private String key;
+    }
+}
@@ -16,17 +16,26 @@
 package com.amazon.servicecatalog.terraform.customresource.facades;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
 import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
-import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClientBuilder;
+import com.amazonaws.services.simplesystemsmanagement.model.CancelCommandRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.Command;
+import com.amazonaws.services.simplesystemsmanagement.model.CommandFilter;
+import com.amazonaws.services.simplesystemsmanagement.model.CommandFilterKey;
 import com.amazonaws.services.simplesystemsmanagement.model.GetCommandInvocationRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.GetCommandInvocationResult;
 import com.amazonaws.services.simplesystemsmanagement.model.InvalidInstanceIdException;
+import com.amazonaws.services.simplesystemsmanagement.model.ListCommandsRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.ListCommandsResult;
 import com.amazonaws.services.simplesystemsmanagement.model.SendCommandRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.SendCommandResult;
 import com.amazonaws.services.simplesystemsmanagement.model.UnsupportedPlatformTypeException;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import lombok.extern.log4j.Log4j2;
@@ -37,47 +46,106 @@ public class SsmFacade {
     private static final String COMMAND_PARAMETER_NAME = "commands";
     private static final String WORKING_DIRECTORY_PARAMETER_NAME = "workingDirectory";
     private static final String DEFAULT_HOME_DIRECTORY = "/home/ec2-user";
+    private static final List<String> OUTSTANDING_COMMAND_STATUS = ImmutableList.of("Pending", "InProgress");
 
     private AWSSimpleSystemsManagement ssm;
 
     public SsmFacade() {
-        this.ssm = AWSSimpleSystemsManagementClientBuilder.defaultClient();
+        this(AwsClientRegistry.ssm());
+    }
+
+    public SsmFacade(AWSSimpleSystemsManagement ssm) {
+        this.ssm = ssm;
     }
 
     public SendCommandResult sendCommand(List<String> commands,
             String instanceId,
             String outputS3Bucket,
             String outputS3KeyPrefix) {
+        try {
+            SendCommandRequest request = buildSendCommandRequest(commands, instanceId, outputS3Bucket, outputS3KeyPrefix);
+            return StageMetrics.time("SendCommand", () -> ssm.sendCommand(request));
+        } catch (RuntimeException e) {
+            throw translateSendCommandException(e, instanceId);
+        }
+    }
+
+    private static SendCommandRequest buildSendCommandRequest(List<String> commands,
+            String instanceId,
+            String outputS3Bucket,
+            String outputS3KeyPrefix) {
         Map<String, List<String>> parameters = ImmutableMap.of(
                 COMMAND_PARAMETER_NAME, commands,
                 WORKING_DIRECTORY_PARAMETER_NAME, Collections.singletonList(DEFAULT_HOME_DIRECTORY)
         );
 
-        SendCommandRequest commandRequest = new SendCommandRequest()
+        return Deadline.bound(new SendCommandRequest()
                 .withInstanceIds(instanceId)
                 .withParameters(parameters)
                 .withOutputS3BucketName(outputS3Bucket)
                 .withOutputS3KeyPrefix(outputS3KeyPrefix)
-                .withDocumentName(RUN_SCRIPT_SSM_DOCUMENT);
+                .withDocumentName(RUN_SCRIPT_SSM_DOCUMENT));
+    }
 
-        try {
-            return ssm.sendCommand(commandRequest);
-        } catch (InvalidInstanceIdException e) {
+    private static RuntimeException translateSendCommandException(RuntimeException e, String instanceId) {
+        if (e instanceof InvalidInstanceIdException) {
             String message = String.format("Received InvalidInstanceId Error from AWS Systems Manager when sending " +
                     "a command to the FulfillmentServer, %s. Verify that the instance is configured correctly.",
                     instanceId);
-            throw new RuntimeException(message);
-        } catch (UnsupportedPlatformTypeException e) {
+            return new RuntimeException(message, e);
+        } else if (e instanceof UnsupportedPlatformTypeException) {
             String message = String.format("ServiceCatalog does not support the platform type of the " +
                     "FulfillmentServer, %s.", instanceId);
-            throw new RuntimeException(message);
+            return new RuntimeException(message, e);
         }
+        return e;
     }
 
     public GetCommandInvocationResult getCommand(String commandId, String instanceId) {
-        GetCommandInvocationRequest request = new GetCommandInvocationRequest()
+        GetCommandInvocationRequest request = buildGetCommandInvocationRequest(commandId, instanceId);
+        return StageMetrics.time("GetCommandInvocation", () -> ssm.getCommandInvocation(request));
+    }
+
+    private static GetCommandInvocationRequest buildGetCommandInvocationRequest(String commandId, String instanceId) {
+        return Deadline.bound(new GetCommandInvocationRequest()
                 .withInstanceId(instanceId)
-                .withCommandId(commandId);
-        return ssm.getCommandInvocation(request);
+                .withCommandId(commandId));
+    }
+
+    /**
+     * Request the cancellation of the command invocation. SSM stops the script asynchronously, the invocation is
+     * Cancelling until it did.
+     *
+     * @param commandId the SSM command ID
+     * @param instanceId the instance the command was sent to
+     */
+    public void cancelCommand(String commandId, String instanceId) {
+        CancelCommandRequest request = Deadline.bound(new CancelCommandRequest()
+                .withCommandId(commandId)
+                .withInstanceIds(instanceId));
+        StageMetrics.time("CancelCommand", () -> ssm.cancelCommand(request));
+    }
+
+    /**
+     * Count the outstanding (Pending or InProgress) shell script commands per instance.
+     *
+     * @return the number of outstanding commands keyed by instance ID. Instances without any are absent.
+     */
+    public Map<String, Integer> getOutstandingCommandCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String status : OUTSTANDING_COMMAND_STATUS) {
+            ListCommandsRequest request = new ListCommandsRequest().withFilters(
+                    new CommandFilter().withKey(CommandFilterKey.Status).withValue(status),
+                    new CommandFilter().withKey(CommandFilterKey.DocumentName).withValue(RUN_SCRIPT_SSM_DOCUMENT));
+            do {
+                Deadline.bound(request);
+                ListCommandsResult result = StageMetrics.time("ListCommands", () -> ssm.listCommands(request));
+                for (Command command : result.getCommands()) {
+                    command.getInstanceIds().forEach(instanceId -> counts.merge(instanceId, 1, Integer::sum));
+                }
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+        }
+        return counts;
     }
 }
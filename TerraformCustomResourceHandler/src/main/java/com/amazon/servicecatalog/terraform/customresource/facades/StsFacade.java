@@ -16,42 +16,114 @@
 package com.amazon.servicecatalog.terraform.customresource.facades;
 
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.amazon.servicecatalog.terraform.customresource.util.ArnParser;
+import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
-import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
+import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
 public class StsFacade {
     private static final String EXTERNAL_ID_FORMAT= "TerraformHubAccount-%s";
+    private static final long MAX_CACHED_ROLES = 500;
+    private static final long IDLE_ROLE_EVICTION_MINUTES = 60;
+
+    /**
+     * External IDs by invoked function ARN, which only varies by alias or version within a container.
+     */
+    private static final ConcurrentMap<String, String> externalIds = new ConcurrentHashMap<>();
+
+    /**
+     * Assumed-role credentials providers shared across invocations, keyed by role and external ID. Each provider
+     * holds its session credentials and refreshes them ahead of expiry (asynchronously within five minutes of
+     * expiry, blocking within one minute), so repeated launches for the same role do not call AssumeRole.
+     *
+     * Removed providers are not closed, since another thread may still be resolving credentials from one. They are
+     * reclaimed by GC, which also shuts down the thread of their background refresh.
+     */
+    private static final Cache<RoleKey, STSAssumeRoleSessionCredentialsProvider> credentialsCache =
+            CacheBuilder.newBuilder()
+                    .maximumSize(MAX_CACHED_ROLES)
+                    .expireAfterAccess(IDLE_ROLE_EVICTION_MINUTES, TimeUnit.MINUTES)
+                    .build();
+
     private AWSSecurityTokenService sts;
 
     public StsFacade() {
-        this.sts = AWSSecurityTokenServiceClientBuilder.defaultClient();
+        this(AwsClientRegistry.sts());
+    }
+
+    public StsFacade(AWSSecurityTokenService sts) {
+        this.sts = sts;
     }
 
     public static String getExternalId(Context context) {
-        String functionArn = context.getInvokedFunctionArn();
-        String accountId = ArnParser.getAccountId(functionArn);
-        return String.format(EXTERNAL_ID_FORMAT, accountId);
+        return externalIds.computeIfAbsent(context.getInvokedFunctionArn(),
+                functionArn -> String.format(EXTERNAL_ID_FORMAT, ArnParser.getAccountId(functionArn)));
     }
 
     /**
-     * Generate an AWSCredentialsProvider for the roleArn
+     * Get an AWSCredentialsProvider for the roleArn. Credentials are served from the container-wide credentials
+     * cache, so AssumeRole is only called on a cache miss or when the cached session is about to expire.
      *
      * @param roleArn the role that will be assumed
      * @param externalId the externalId to use when assuming the role
      * @return an AWSCredentialsProvider for the roleArn
      */
     public AWSCredentialsProvider getCredentialsProvider(String roleArn, String externalId) {
-        return new STSAssumeRoleSessionCredentialsProvider.Builder(roleArn, UUID.randomUUID().toString())
-                .withStsClient(sts)
-                .withExternalId(externalId)
-                .build();
+        return new CachedRoleCredentialsProvider(new RoleKey(roleArn, externalId));
+    }
+
+    private STSAssumeRoleSessionCredentialsProvider getCachedProvider(RoleKey key) {
+        try {
+            return credentialsCache.get(key, () -> {
+                log.info("Credentials cache miss for " + key);
+                return new STSAssumeRoleSessionCredentialsProvider.Builder(key.getRoleArn(), UUID.randomUUID().toString())
+                        .withStsClient(sts)
+                        .withExternalId(key.getExternalId())
+                        .build();
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to create credentials provider for " + key.getRoleArn(), e.getCause());
+        }
+    }
+
+    @Value
+    private static class RoleKey {
+        private String roleArn;
+        private String externalId;
+    }
+
+    /**
+     * Looks up the cached provider on every use, so clients holding on to this provider move to a new session once
+     * the underlying provider has been evicted.
+     */
+    private class CachedRoleCredentialsProvider implements AWSCredentialsProvider {
+        private final RoleKey key;
+
+        CachedRoleCredentialsProvider(RoleKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public AWSCredentials getCredentials() {
+            return getCachedProvider(key).getCredentials();
+        }
+
+        @Override
+        public void refresh() {
+            getCachedProvider(key).refresh();
+        }
     }
 }
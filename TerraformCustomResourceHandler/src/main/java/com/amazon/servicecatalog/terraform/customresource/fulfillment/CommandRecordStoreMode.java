@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazon.servicecatalog.terraform.customresource.persistence.CachingCommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.CommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.InMemoryCommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.LocalFileCommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.S3CommandRecordStore;
+
+import lombok.Value;
+
+/**
+ * The configurable backends of the command records, see {@link CommandRecordStore}.
+ */
+public enum CommandRecordStoreMode {
+    S3,
+    LOCAL_FILE,
+    IN_MEMORY;
+
+    private static final ConcurrentMap<StoreKey, CommandRecordStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Get the store of the configuration. Stores are shared across warm invocations, so that in-memory records and
+     * the near cache outlive a single request.
+     *
+     * @param envConfig the Lambda configuration
+     * @return the store, behind a near cache if a cache TTL is configured
+     */
+    public static CommandRecordStore getStore(EnvConfig envConfig) {
+        CommandRecordStoreMode mode = envConfig.getCommandRecordStoreMode();
+        String location = mode == LOCAL_FILE ? envConfig.getCommandRecordStorePath() : envConfig.getCommandRecordS3Bucket();
+        StoreKey key = new StoreKey(mode, location, envConfig.getCommandRecordCacheTtlSeconds());
+        return stores.computeIfAbsent(key, StoreKey::createStore);
+    }
+
+    private CommandRecordStore createStore(String location) {
+        switch (this) {
+            case S3:
+                return new S3CommandRecordStore(location);
+            case LOCAL_FILE:
+                return new LocalFileCommandRecordStore(Paths.get(location));
+            case IN_MEMORY:
+                return new InMemoryCommandRecordStore();
+            default:
+                throw new IllegalStateException("Unknown command record store mode " + this);
+        }
+    }
+
+    @Value
+    private static class StoreKey {
+        private CommandRecordStoreMode mode;
+        private String location;
+        private long cacheTtlSeconds;
+
+        private CommandRecordStore createStore() {
+            CommandRecordStore store = mode.createStore(location);
+            return cacheTtlSeconds > 0 ? new CachingCommandRecordStore(store, cacheTtlSeconds) : store;
+        }
+    }
+}
@@ -17,31 +17,65 @@ package com.amazon.servicecatalog.terraform.customresource.fulfillment;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller;
 import com.amazon.servicecatalog.terraform.customresource.ResponsePoster;
-import com.amazon.servicecatalog.terraform.customresource.facades.CommandRecordPersistence;
+import com.amazon.servicecatalog.terraform.customresource.facades.AwsClientRegistry;
 import com.amazon.servicecatalog.terraform.customresource.facades.Ec2Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.S3Facade;
 import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazon.servicecatalog.terraform.customresource.model.AppliedConfiguration;
+import com.amazon.servicecatalog.terraform.customresource.model.ArtifactMetadata;
+import com.amazon.servicecatalog.terraform.customresource.model.CommandCompletion;
 import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.DispatchRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.RequestType;
+import com.amazon.servicecatalog.terraform.customresource.model.StackId;
 import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.persistence.AppliedConfigurationStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.CommandRecordConflictException;
+import com.amazon.servicecatalog.terraform.customresource.persistence.CommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.DispatchRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.util.ArnParser;
+import com.amazon.servicecatalog.terraform.customresource.util.ParallelStage;
+import com.amazon.servicecatalog.terraform.customresource.util.ResponseUrls;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.simplesystemsmanagement.model.GetCommandInvocationResult;
+import com.amazonaws.services.simplesystemsmanagement.model.InvalidInstanceIdException;
 import com.amazonaws.services.simplesystemsmanagement.model.InvocationDoesNotExistException;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 
+import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
 public class CommandSender {
     private static final String TERRAFORM_COMMAND = "sc-terraform-wrapper '%s' '%s' '%s' '%s' '%s'";
+    private static final String ARTIFACT_METADATA_ARGUMENT = " --artifact-metadata '%s'";
+    private static final String PUBLISH_COMPLETION_COMMAND = "aws sns publish --region %s --topic-arn %s --message '%s' " +
+            "--message-attributes '%s={DataType=String,StringValue=%s}' > /dev/null";
     private static final List<String> EXECUTING_COMMAND_STATUS = ImmutableList.of("Pending", "Delayed", "Cancelling", "InProgress");
+    private static final long PENDING_LEASE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_LEASE_ATTEMPTS = 2;
+    private static final long CANCEL_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(60);
 
     private final SsmFacade ssmFacade;
     private final Ec2Facade ec2Facade;
-    private final CommandRecordPersistence commandRecordPersistence;
+    private final S3Facade s3Facade;
+    private final CommandRecordStore commandRecordStore;
+    private final AppliedConfigurationStore appliedConfigurationStore;
+    private final DispatchRecordStore dispatchRecordStore;
+    private final ClaimCheckStore claimCheckStore;
+    private final InstanceSelectionStrategy instanceSelectionStrategy;
     private final CustomResourceRequest request;
     private final String externalId;
     private final EnvConfig envConfig;
@@ -49,35 +83,450 @@ public class CommandSender {
     public CommandSender(CustomResourceRequest request,
             EnvConfig envConfig,
             String externalId) {
+        this(request, envConfig, externalId, new Ec2Facade(), new SsmFacade(), new S3Facade(),
+                CommandRecordStoreMode.getStore(envConfig),
+                new AppliedConfigurationStore(AwsClientRegistry.s3(), envConfig.getCommandOutputS3Bucket()),
+                new DispatchRecordStore(AwsClientRegistry.s3(), envConfig.getCommandRecordS3Bucket()),
+                ClaimCheckStore.fromEnvironmentVariables(AwsClientRegistry.s3()));
+    }
+
+    public CommandSender(CustomResourceRequest request,
+            EnvConfig envConfig,
+            String externalId,
+            Ec2Facade ec2Facade,
+            SsmFacade ssmFacade,
+            S3Facade s3Facade,
+            CommandRecordStore commandRecordStore,
+            AppliedConfigurationStore appliedConfigurationStore,
+            DispatchRecordStore dispatchRecordStore,
+            ClaimCheckStore claimCheckStore) {
         this.request = request;
         this.externalId = externalId;
         this.envConfig = envConfig;
-        this.ec2Facade = new Ec2Facade();
-        this.ssmFacade = new SsmFacade();
-        this.commandRecordPersistence = new CommandRecordPersistence(envConfig.getCommandRecordS3Bucket());
+        this.ec2Facade = ec2Facade;
+        this.ssmFacade = ssmFacade;
+        this.s3Facade = s3Facade;
+        this.commandRecordStore = commandRecordStore;
+        this.appliedConfigurationStore = appliedConfigurationStore;
+        this.dispatchRecordStore = dispatchRecordStore;
+        this.claimCheckStore = claimCheckStore;
+        this.instanceSelectionStrategy = envConfig.getInstanceSelectionMode().createStrategy(ssmFacade);
     }
 
     public void sendCommand() {
-        // verify command status to avoid concurrent updates
-        verifyPreviousCommandCompletion();
+        ParallelStage prelude = new ParallelStage();
+        PreparedDispatch dispatch = prepare(prelude);
+        prelude.join();
+        sendCommand(dispatch);
+    }
+
+    /**
+     * Start the lookups the dispatch depends on in the given stage: reading the command record of the stack and
+     * verifying that no command is executing for it, looking up whether the request was already dispatched, selecting
+     * the fulfillment server and resolving the version of the Terraform artifact, and for an Update that may be a
+     * no-op, reading the applied configuration of the resource. All of them only read, so they run alongside the
+     * other checks of the request.
+     *
+     * @param prelude the stage to run the lookups in
+     * @return the pending lookups, to be passed to {@link #sendCommand(PreparedDispatch)} once the stage is
+     * joined
+     */
+    public PreparedDispatch prepare(ParallelStage prelude) {
+        Future<VerifiedCommandRecord> previousRecord = prelude.fork(this::getVerifiedCommandRecord);
+        Future<DispatchRecord> dispatchRecord = prelude.fork(this::getDispatchRecord);
+        Future<String> instanceId = prelude.fork(() -> instanceSelectionStrategy.selectInstance(
+                ec2Facade.getInstanceIds(envConfig.getInstanceTag()), request));
+        // Servers that do not understand --artifact-metadata download the current version anyway.
+        Future<ArtifactMetadata> artifactMetadata = envConfig.isSendArtifactMetadata()
+                ? prelude.fork(this::resolveArtifactMetadata)
+                : CompletableFuture.completedFuture(null);
+        Future<AppliedConfiguration> appliedConfiguration = isNoOpUpdateCandidate()
+                ? prelude.fork(this::getAppliedConfiguration)
+                : CompletableFuture.completedFuture(null);
+        return new PreparedDispatch(previousRecord, dispatchRecord, instanceId, artifactMetadata, appliedConfiguration);
+    }
+
+    /**
+     * Take the lease on the stack and send the command, once all preconditions of the joined stage passed. An Update
+     * that would not change the resources is not sent, and succeeds right away with the data of the last run. If a
+     * command is executing or being dispatched for the stack, the request is queued and sent once that command
+     * completed, replacing and failing the request queued before it, if any. A Delete cancels the executing command
+     * instead of waiting for it, see {@link #cancelExecutingCommand(VerifiedCommandRecord)}. A request that
+     * was already dispatched is not sent again, its command posts the response.
+     */
+    public void sendCommand(PreparedDispatch dispatch) {
+        dispatch(dispatch, false, null);
+    }
+
+    /**
+     * Send the command of the request queued for the stack, once the command it waited for completed. Nothing is sent
+     * if the request was replaced by a newer one in the meantime, or if CloudFormation no longer waits for it.
+     *
+     * @param completion the completion of the command the request waited for, or null if no completion was received,
+     *         e.g. when the dispatch of another request for the stack failed, in which case the request stays queued
+     *         while a command is still executing or being dispatched for the stack
+     */
+    public void sendQueuedCommand(PreparedDispatch dispatch, CommandCompletion completion) {
+        if (ResponseUrls.isExpired(request.getResponseUrl())) {
+            log.warn(String.format("The response URL of queued request %s expired, discarding it.",
+                    request.getRequestId()));
+            discardQueuedRequest();
+            return;
+        }
+        dispatch(dispatch, true, completion);
+    }
+
+    /**
+     * @param queued whether the request is the one queued for the stack, rather than received from CloudFormation
+     * @param completion the completion that triggered the dispatch of the queued request, or null
+     */
+    private void dispatch(PreparedDispatch dispatch, boolean queued, CommandCompletion completion) {
+        VerifiedCommandRecord previousRecord = ParallelStage.getResult(dispatch.getPreviousRecord());
+        DispatchRecord dispatchRecord = ParallelStage.getResult(dispatch.getDispatchRecord());
+        String instanceId = ParallelStage.getResult(dispatch.getInstanceId());
+        ArtifactMetadata artifactMetadata = ParallelStage.getResult(dispatch.getArtifactMetadata());
+        AppliedConfiguration appliedConfiguration = ParallelStage.getResult(dispatch.getAppliedConfiguration());
+
+        if (dispatchRecord != null) {
+            log.info(String.format("Request %s was already dispatched as command %s to instance %s, not sending it " +
+                    "again.", request.getRequestId(), dispatchRecord.getCommandId(), dispatchRecord.getInstanceId()));
+            return;
+        }
+
+        if (isApplied(appliedConfiguration, artifactMetadata)) {
+            log.info(String.format("Update does not change the configuration applied by request %s, not sending a " +
+                    "command.", appliedConfiguration.getRequestId()));
+            ResponsePoster.postSuccess(request, appliedConfiguration.getData());
+            if (queued) {
+                discardQueuedRequest();
+            }
+            return;
+        }
+
+        if (request.getRequestType() == RequestType.DELETE && !queued) {
+            previousRecord = cancelExecutingCommand(previousRecord);
+        }
+
+        VersionedCommandRecord lease = takeLease(previousRecord, instanceId, queued, completion);
+        if (lease == null) {
+            return;
+        }
 
         Tag instanceTag = envConfig.getInstanceTag();
-        String instanceId = ec2Facade.getInstanceId(instanceTag);
+        String outputBucket = envConfig.getCommandOutputS3Bucket();
+        String commandId;
+        try {
+            String outputS3KeyPrefix = createOutputS3KeyPrefix();
+            List<String> commands = buildCommands(outputS3KeyPrefix, artifactMetadata);
+
+            // Fire-and-forget send command.
+            String ssmOutputS3KeyPrefix = outputS3KeyPrefix + "/ssm_output";
+            commandId = ssmFacade.sendCommand(commands, instanceId, outputBucket, ssmOutputS3KeyPrefix)
+                                 .getCommand()
+                                 .getCommandId();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof InvalidInstanceIdException) {
+                // The cached inventory is stale, e.g. the instance was stopped or lost its SSM registration.
+                ec2Facade.invalidateInstanceIds(instanceTag);
+            }
+            releaseLease(lease);
+            throw e;
+        }
+        log.info("Sent commandId: " + commandId);
+        instanceSelectionStrategy.recordDispatch(instanceId);
+        putCommandId(lease, commandId);
+        putDispatchRecord(commandId, instanceId);
+        StageMetrics.time("PostSendCheck", () -> bestEffortCheckWhetherCommandIsNotFound(commandId, instanceId));
+    }
+
+    /**
+     * Cancel the command executing for the stack, so a Delete does not wait for an abandoned apply to finish before it
+     * destroys the resources. The cancelled command is killed, so the resources it created but had not yet recorded in
+     * the Terraform state are not destroyed. A command that is still being dispatched is not cancelled, the Delete is
+     * queued behind it.
+     *
+     * @param current the verified command record of the stack
+     * @return the command record of the stack once the cancelled command stopped
+     * @throws RuntimeException if the command did not stop in time, since it no longer notifies its completion
+     */
+    private VerifiedCommandRecord cancelExecutingCommand(VerifiedCommandRecord current) {
+        if (current.getInProgressMessage() == null || current.getRecord().getRecord().isPendingLease()) {
+            return current;
+        }
+        TerraformCommandRecord record = current.getRecord().getRecord();
+        if (request.getRequestId().equals(record.getRequestId())) {
+            // A retry of the Delete whose destroy is executing.
+            return current;
+        }
+
+        String commandId = record.getCommandId();
+        String instanceId = record.getInstanceId();
+        log.info(String.format("Cancelling command %s of request %s on instance %s before deleting.", commandId,
+                record.getRequestId(), instanceId));
+        try {
+            ssmFacade.cancelCommand(commandId, instanceId);
+        } catch (AmazonClientException e) {
+            log.warn(String.format("Unable to cancel command %s, the Delete waits for it.", commandId), e);
+            return current;
+        }
+
+        GetCommandInvocationResult commandResult = StageMetrics.time("WaitForCancellation",
+                () -> new CommandStatusPoller(ssmFacade).pollUntilTerminal(commandId, instanceId, CANCEL_WAIT_MILLIS));
+        if (commandResult == null || !CommandStatusPoller.TERMINAL_COMMAND_STATUS.contains(commandResult.getStatus())) {
+            String message = String.format("Cancelled the Terraform command executing for this stack, but it did " +
+                    "not stop in time. Command ID: %s. Instance Id: %s.", commandId, instanceId);
+            throw new RuntimeException(message);
+        }
+        log.info(String.format("Command %s stopped with status %s.", commandId, commandResult.getStatus()));
+        return getVerifiedCommandRecord();
+    }
+
+    /**
+     * Take the lease on the stack before sending, so a concurrent request for the same stack cannot also send. While a
+     * command is executing or being dispatched, or another request is queued, the request is queued instead. Once
+     * queued, the command is checked again, since it may have completed before the request was queued, in which case
+     * its completion found the queue empty.
+     *
+     * @param current the verified command record of the stack
+     * @param instanceId the instance the command will be sent to
+     * @param queued whether the request is the one queued for the stack
+     * @param completion the completion the queued request was dispatched for, or null
+     * @return the lease and its ETag, or null if the request is queued or no longer queued
+     * @throws RuntimeException if a command is executing and requests are not queued, or the record kept changing
+     */
+    private VersionedCommandRecord takeLease(VerifiedCommandRecord current, String instanceId, boolean queued,
+            CommandCompletion completion) {
+        int conflicts = 0;
+        while (true) {
+            String inProgressMessage = current.isCompletedBy(completion) ? null : current.getInProgressMessage();
+            CustomResourceRequest queuedRequest = getQueuedRequest(current.getRecord());
+            boolean isQueuedRequest = queuedRequest != null && queuedRequest.getRequestId().equals(request.getRequestId());
+            String expectedETag = current.getRecord() != null ? current.getRecord().getETag() : null;
+            if (!queued && isDispatchedBy(current, inProgressMessage)) {
+                log.info(String.format("A command for request %s is already being dispatched or was sent, not " +
+                        "sending it again.", request.getRequestId()));
+                return null;
+            }
+            try {
+                if (queued || isQueuedRequest) {
+                    if (!isQueuedRequest) {
+                        log.info(String.format("Request %s is no longer queued for this stack, not sending a " +
+                                "command.", request.getRequestId()));
+                        return null;
+                    }
+                    if (inProgressMessage != null) {
+                        log.info(String.format("Request %s stays queued. %s", request.getRequestId(),
+                                inProgressMessage));
+                        return null;
+                    }
+                } else if (inProgressMessage != null || queuedRequest != null) {
+                    if (envConfig.getCommandCompletionTopicArn() == null) {
+                        throw new RuntimeException(inProgressMessage);
+                    }
+                    TerraformCommandRecord queuingRecord = current.getRecord().getRecord().toBuilder()
+                            .queuedRequest(CustomResourceMarshaller.write(request))
+                            .queuedAt(System.currentTimeMillis())
+                            .build();
+                    putCommandRecord(queuingRecord, expectedETag);
+                    log.info(String.format("Queued request %s until the Terraform command of this stack completed.",
+                            request.getRequestId()));
+                    if (queuedRequest != null) {
+                        postReplaced(queuedRequest);
+                    }
+                    queued = true;
+                    current = getVerifiedCommandRecord();
+                    continue;
+                }
+
+                TerraformCommandRecord lease = TerraformCommandRecord.builder()
+                        .instanceId(instanceId)
+                        .requestId(request.getRequestId())
+                        .createdAt(System.currentTimeMillis())
+                        .build();
+                return new VersionedCommandRecord(lease, putCommandRecord(lease, expectedETag));
+            } catch (CommandRecordConflictException e) {
+                if (++conflicts >= MAX_LEASE_ATTEMPTS) {
+                    log.warn("Lost the command record lease to a concurrent request.", e);
+                    throw new RuntimeException("Another Terraform command is being dispatched for this stack.");
+                }
+                // The record may have been read from the near cache, so check it again before giving up.
+                log.info("Command record changed since it was read, reading it again.");
+                current = getVerifiedCommandRecord();
+            }
+        }
+    }
+
+    /**
+     * Whether the command record is the lease or the command of this request, e.g. of an earlier delivery that is
+     * still being dispatched. An expired lease without a command is taken over, since its dispatch most likely failed
+     * before the command was sent.
+     */
+    private boolean isDispatchedBy(VerifiedCommandRecord current, String inProgressMessage) {
+        if (current.getRecord() == null) {
+            return false;
+        }
+        TerraformCommandRecord record = current.getRecord().getRecord();
+        return request.getRequestId().equals(record.getRequestId())
+                && (!record.isPendingLease() || inProgressMessage != null);
+    }
+
+    /**
+     * Complete the lease with the ID of the sent command, keeping a request that was queued behind the lease.
+     */
+    private void putCommandId(VersionedCommandRecord lease, String commandId) {
+        VersionedCommandRecord current = lease;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                putCommandRecord(current.getRecord().toBuilder().commandId(commandId).build(), current.getETag());
+                return;
+            } catch (CommandRecordConflictException e) {
+                current = getCommandRecord();
+                if (!isOwnLease(current) || attempt >= MAX_LEASE_ATTEMPTS) {
+                    log.warn(String.format("The lease for command %s expired and was taken over before the command " +
+                            "record was written.", commandId), e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the lease after the command could not be sent, so the next request for the stack does not wait for the
+     * lease to expire. The lease is expired in place rather than deleted, since S3 cannot delete an object only if it
+     * has not changed, and keeps a request that was queued behind it in the meantime. A lease that was already taken
+     * over is left alone. A failure here is only logged, the lease then expires on its own.
+     */
+    private void releaseLease(VersionedCommandRecord lease) {
+        try {
+            VersionedCommandRecord current = lease;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    putCommandRecord(current.getRecord().toBuilder().createdAt(0).build(), current.getETag());
+                    log.info(String.format("Released the command record lease of request %s.", request.getRequestId()));
+                    return;
+                } catch (CommandRecordConflictException e) {
+                    current = getCommandRecord();
+                    if (!isOwnLease(current)) {
+                        log.info("The command record lease was already taken over.");
+                        return;
+                    }
+                    if (attempt >= MAX_LEASE_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to release the command record lease, it expires on its own.", e);
+        }
+    }
+
+    private boolean isOwnLease(VersionedCommandRecord current) {
+        return current != null
+                && current.getRecord().isPendingLease()
+                && request.getRequestId().equals(current.getRecord().getRequestId());
+    }
+
+    /**
+     * Remove the request from the queue of the stack, after it was answered without sending a command. A request
+     * left in the queue by a failure here is replaced by the next request for the stack.
+     *
+     * @return whether the request was removed, false if it was not queued or could not be removed
+     */
+    public boolean discardQueuedRequest() {
+        try {
+            VersionedCommandRecord current = getCommandRecord();
+            CustomResourceRequest queuedRequest = current != null ? getQueuedRequest(current) : null;
+            if (queuedRequest != null && queuedRequest.getRequestId().equals(request.getRequestId())) {
+                putCommandRecord(current.getRecord().toBuilder().queuedRequest(null).queuedAt(0).build(),
+                        current.getETag());
+                return true;
+            }
+        } catch (RuntimeException e) {
+            log.warn(String.format("Unable to remove request %s from the queue.", request.getRequestId()), e);
+        }
+        return false;
+    }
+
+    private void postReplaced(CustomResourceRequest replacedRequest) {
+        String message = String.format("Replaced by request %s for the same resource, which runs once the Terraform " +
+                "command in progress completed.", request.getRequestId());
+        try {
+            ResponsePoster.postFailure(replacedRequest, message);
+        } catch (RuntimeException e) {
+            log.warn(String.format("Unable to fail replaced request %s.", replacedRequest.getRequestId()), e);
+        }
+    }
 
+    private DispatchRecord getDispatchRecord() {
+        try {
+            return StageMetrics.time("GetDispatchRecord",
+                    () -> dispatchRecordStore.getDispatchRecord(request.getRequestId()));
+        } catch (AmazonClientException e) {
+            // The command record still catches a redelivery of the last request of the stack.
+            log.warn("Unable to read the dispatch record of the request.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Record the dispatch once the command was sent. Failing the request at this point would leave the command
+     * running without a response to post to, so a failure is only logged.
+     */
+    private void putDispatchRecord(String commandId, String instanceId) {
+        DispatchRecord dispatchRecord = new DispatchRecord(request.getRequestId(), request.getPhysicalResourceId(),
+                commandId, instanceId, System.currentTimeMillis());
+        try {
+            StageMetrics.time("PutDispatchRecord", () -> dispatchRecordStore.putDispatchRecord(dispatchRecord));
+        } catch (RuntimeException e) {
+            log.warn(String.format("Unable to record the dispatch of command %s.", commandId), e);
+        }
+    }
+
+    private static CustomResourceRequest getQueuedRequest(VersionedCommandRecord versionedRecord) {
+        if (versionedRecord == null || versionedRecord.getRecord().getQueuedRequest() == null) {
+            return null;
+        }
+        return CustomResourceMarshaller.readCustomResourceRequest(versionedRecord.getRecord().getQueuedRequest(), true);
+    }
+
+    private VersionedCommandRecord getCommandRecord() {
+        return StageMetrics.time("GetCommandRecord",
+                () -> commandRecordStore.getCommandRecord(request.getPhysicalResourceId()));
+    }
+
+    private String putCommandRecord(TerraformCommandRecord record, String expectedETag) {
+        return StageMetrics.time("PutCommandRecord",
+                () -> commandRecordStore.putCommandRecord(request.getPhysicalResourceId(), record, expectedETag));
+    }
+
+    /**
+     * Build the shell script that runs the Terraform wrapper and uploads its output. If claim checks of SSM commands
+     * are enabled, a request above the claim check threshold is stored in S3 and passed to the wrapper as a
+     * claim-checked envelope.
+     *
+     * @param outputS3KeyPrefix the prefix of the output keys of this command
+     * @param artifactMetadata the version of the Terraform artifact the wrapper must use, or null to let it download
+     *         the current version
+     */
+    List<String> buildCommands(String outputS3KeyPrefix, ArtifactMetadata artifactMetadata) {
         String outputBucket = envConfig.getCommandOutputS3Bucket();
-        String outputS3KeyPrefix = createOutputS3KeyPrefix();
         String wrapperScriptOutputS3Key = outputS3KeyPrefix + "/tf_wrapper_script_output";
         String wrapperScriptErrorS3Key = outputS3KeyPrefix + "/tf_wrapper_script_errors";
 
         String terraformCommand = String.format(
                 TERRAFORM_COMMAND,
-                CustomResourceMarshaller.write(request),
+                envConfig.isClaimCheckSsmCommands()
+                        ? claimCheckStore.toMessage(request)
+                        : CustomResourceMarshaller.write(request),
                 outputBucket,
                 wrapperScriptOutputS3Key,
                 wrapperScriptErrorS3Key,
                 externalId);
+        if (artifactMetadata != null) {
+            terraformCommand += String.format(ARTIFACT_METADATA_ARGUMENT, CustomResourceMarshaller.write(artifactMetadata));
+        }
 
-        List<String> commands = ImmutableList.of(
+        ImmutableList.Builder<String> commands = ImmutableList.<String>builder().add(
                 "#!/bin/bash",
                 "set -o pipefail",
                 "tmp_out=/tmp/" + UUID.randomUUID(),
@@ -85,38 +534,92 @@ public class CommandSender {
                 terraformCommand + " > >(tee $tmp_out) 2> >(tee $tmp_err >&2)",
                 "status=$?",
                 String.format("aws s3 mv $tmp_out s3://%s/%s", outputBucket, wrapperScriptOutputS3Key),
-                String.format("aws s3 mv $tmp_err s3://%s/%s", outputBucket, wrapperScriptErrorS3Key),
-                "exit $status"
-        );
-
-        // Fire-and-forget send command.
-        String ssmOutputS3KeyPrefix = outputS3KeyPrefix + "/ssm_output";
-        String commandId = ssmFacade.sendCommand(commands, instanceId, outputBucket, ssmOutputS3KeyPrefix)
-                                    .getCommand()
-                                    .getCommandId();
-        log.info("Sent commandId: " + commandId);
-        commandRecordPersistence.putCommandRecord(request.getPhysicalResourceId(), commandId, instanceId);
-        bestEffortCheckWhetherCommandIsNotFound(commandId, instanceId);
+                String.format("aws s3 mv $tmp_err s3://%s/%s", outputBucket, wrapperScriptErrorS3Key));
+        String completionTopicArn = envConfig.getCommandCompletionTopicArn();
+        if (completionTopicArn != null) {
+            // Notify the Lambda, so the request queued behind this command, if any, is dispatched.
+            CommandCompletion completion = new CommandCompletion(request.getPhysicalResourceId(), request.getRequestId());
+            commands.add(String.format(PUBLISH_COMPLETION_COMMAND,
+                    ArnParser.getRegion(completionTopicArn),
+                    completionTopicArn,
+                    CustomResourceMarshaller.write(completion),
+                    CommandCompletion.MESSAGE_TYPE_ATTRIBUTE_KEY,
+                    CommandCompletion.MESSAGE_TYPE));
+        }
+        return commands.add("exit $status").build();
     }
 
-    private String createOutputS3KeyPrefix() {
-        List<String> stackIdParts = Splitter.on(':').splitToList(request.getStackId());
-        String region = stackIdParts.get(3);
-        String accountId = stackIdParts.get(4);
-        String stackName = Splitter.on('/').splitToList(stackIdParts.get(5)).get(1);
-        return String.format("%s/%s/%s/%s-%s", accountId, region, stackName, System.currentTimeMillis(), request.getRequestType());
+    /**
+     * Resolve the version of the Terraform artifact, so the fulfillment server uses the artifact that was current
+     * when the request was dispatched and can serve it from its artifact cache.
+     *
+     * @return the artifact version, or null if it could not be resolved, in which case the server downloads the
+     * current version
+     * @throws RuntimeException if the artifact does not exist
+     */
+    private ArtifactMetadata resolveArtifactMetadata() {
+        String artifactUrl = request.getResourceProperties().getTerraformArtifactUrl();
+        try {
+            // S3 encodes spaces in object URLs as "+", like the wrapper does, treat them as such.
+            AmazonS3URI artifactUri = new AmazonS3URI(artifactUrl.replace("+", "%20"), false);
+            return s3Facade.getArtifactMetadata(artifactUri.getBucket(), artifactUri.getKey());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                throw new RuntimeException("Terraform config does not exist. No config found at " + artifactUrl);
+            }
+            log.warn("Unable to resolve the Terraform artifact version, the current version will be used.", e);
+        } catch (IllegalArgumentException | AmazonClientException e) {
+            log.warn("Unable to resolve the Terraform artifact version, the current version will be used.", e);
+        }
+        return null;
     }
 
-    private void bestEffortCheckWhetherCommandIsNotFound(String commandId, String instanceId) {
+    /**
+     * An Update is only a no-op candidate if its properties are equivalent to the old ones. Dry runs are never no-ops,
+     * since their plan is their result.
+     */
+    private boolean isNoOpUpdateCandidate() {
+        return request.getRequestType() == RequestType.UPDATE
+                && request.getResourceProperties().getDryRunId() == null
+                && request.getResourceProperties().isEquivalentTo(request.getOldResourceProperties());
+    }
+
+    private AppliedConfiguration getAppliedConfiguration() {
         try {
-            TimeUnit.SECONDS.sleep(30);
-        } catch (InterruptedException e) {
-            log.warn("Sleep before getting SSM command interrupted.");
+            return StageMetrics.time("GetAppliedConfiguration",
+                    () -> appliedConfigurationStore.getAppliedConfiguration(request.getPhysicalResourceId()));
+        } catch (AmazonClientException e) {
+            log.warn("Unable to read the applied configuration, the Update will be sent.", e);
+            return null;
         }
+    }
+
+    /**
+     * Whether the last successful run of the resource applied the properties of the request with the same artifact
+     * version, so running Terraform again would not change anything.
+     */
+    private boolean isApplied(AppliedConfiguration appliedConfiguration, ArtifactMetadata artifactMetadata) {
+        return appliedConfiguration != null
+                && artifactMetadata != null
+                && artifactMetadata.equals(appliedConfiguration.getArtifactMetadata())
+                && request.getResourceProperties().isEquivalentTo(appliedConfiguration.getResourceProperties());
+    }
+
+    String createOutputS3KeyPrefix() {
+        StackId stackId = request.getParsedStackId();
+        return String.format("%s/%s/%s/%s-%s", stackId.getAccountId(), stackId.getRegion(), stackId.getStackName(),
+                System.currentTimeMillis(), request.getRequestType());
+    }
 
+    private void bestEffortCheckWhetherCommandIsNotFound(String commandId, String instanceId) {
         try {
-            GetCommandInvocationResult commandResult = ssmFacade.getCommand(commandId, instanceId);
-            if ("FAILED".equals(commandResult.getStatus()) && commandResult.getResponseCode() == 127) {
+            GetCommandInvocationResult commandResult = new CommandStatusPoller(ssmFacade)
+                    .pollUntilSettled(commandId, instanceId);
+            if (commandResult == null) {
+                log.warn("No invocation was reported by SSM for command " + commandId);
+                return;
+            }
+            if ("Failed".equals(commandResult.getStatus()) && commandResult.getResponseCode() == 127) {
                 String message = String.format("Terraform wrapper script not found at %s on instance %s. SSM command ID: %s",
                                                TERRAFORM_COMMAND, instanceId, commandId);
                 ResponsePoster.postFailure(request, message);
@@ -126,23 +629,38 @@ public class CommandSender {
         }
     }
 
-    private void verifyPreviousCommandCompletion() {
-        TerraformCommandRecord record = commandRecordPersistence.getCommandRecord(request.getPhysicalResourceId());
+    /**
+     * Read the command record of the stack and check whether a command is executing or being dispatched for it.
+     *
+     * @return the current command record of the stack and whether it is in progress
+     */
+    private VerifiedCommandRecord getVerifiedCommandRecord() {
+        VersionedCommandRecord versionedRecord = getCommandRecord();
         // no concurrent command exists
-        if (record == null) {
-            return;
+        if (versionedRecord == null) {
+            return new VerifiedCommandRecord(null, null);
         }
 
-        String commandId = record.getCommandId();
+        TerraformCommandRecord record = versionedRecord.getRecord();
         String instanceId = record.getInstanceId();
+        if (record.isPendingLease()) {
+            if (System.currentTimeMillis() - record.getCreatedAt() < PENDING_LEASE_TIMEOUT_MILLIS) {
+                String message = String.format("Another request (%s) is dispatching a Terraform command for this " +
+                        "stack to instance %s.", record.getRequestId(), instanceId);
+                return new VerifiedCommandRecord(versionedRecord, message);
+            }
+            log.warn(String.format("Taking over the expired command record lease of request %s.", record.getRequestId()));
+            return new VerifiedCommandRecord(versionedRecord, null);
+        }
 
+        String commandId = record.getCommandId();
         try {
             GetCommandInvocationResult commandResult = ssmFacade.getCommand(commandId, instanceId);
 
             if (EXECUTING_COMMAND_STATUS.contains(commandResult.getStatus())) {
                 String message = String.format("SSM is still executing a Terraform command for this stack. Command " +
                                 "ID: %s. Instance Id: %s.", commandId, instanceId);
-                ResponsePoster.postFailure(request, message);
+                return new VerifiedCommandRecord(versionedRecord, message);
             }
         } catch (InvocationDoesNotExistException e) {
             String message = String.format("A command record was found, but no invocation exists for InstanceId ID " +
@@ -150,5 +668,38 @@ public class CommandSender {
                     "has completed and expired.", instanceId, commandId);
             log.warn(message);
         }
+        return new VerifiedCommandRecord(versionedRecord, null);
+    }
+
+    /**
+     * The command record of a stack, and why it is in progress, or null if no command is executing or being
+     * dispatched for the stack.
+     */
+    @Value
+    public static class VerifiedCommandRecord {
+        private VersionedCommandRecord record;
+        private String inProgressMessage;
+
+        /**
+         * @return whether the command of the record is the one that completed
+         */
+        boolean isCompletedBy(CommandCompletion completion) {
+            return completion != null
+                    && record != null
+                    && record.getRecord().getCommandId() != null
+                    && completion.getRequestId().equals(record.getRecord().getRequestId());
+        }
+    }
+
+    /**
+     * The pending lookups of a dispatch, see {@link #prepare(ParallelStage)}.
+     */
+    @Value
+    public static class PreparedDispatch {
+        private Future<VerifiedCommandRecord> previousRecord;
+        private Future<DispatchRecord> dispatchRecord;
+        private Future<String> instanceId;
+        private Future<ArtifactMetadata> artifactMetadata;
+        private Future<AppliedConfiguration> appliedConfiguration;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.simplesystemsmanagement.model.GetCommandInvocationResult;
+import com.amazonaws.services.simplesystemsmanagement.model.InvocationDoesNotExistException;
+import com.google.common.collect.ImmutableList;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Polls an SSM command invocation with bounded exponential backoff. A freshly sent invocation is polled until it has
+ * settled: it reached a terminal status, or it has been InProgress long enough that an immediate failure (such as a
+ * missing wrapper script) would already have been reported. A cancelled invocation is polled until it is terminal.
+ * Polling stops once the call budget of the {@link Deadline} bound to the thread is spent, so the response reserve is
+ * never waited away.
+ */
+@Log4j2
+public class CommandStatusPoller {
+    public static final List<String> TERMINAL_COMMAND_STATUS = ImmutableList.of("Success", "Cancelled", "TimedOut", "Failed");
+
+    private static final String IN_PROGRESS_STATUS = "InProgress";
+    private static final long INITIAL_INTERVAL_MILLIS = 250;
+    private static final long MAX_INTERVAL_MILLIS = 4000;
+    private static final long MAX_WAIT_MILLIS = 30000;
+    private static final long IN_PROGRESS_GRACE_MILLIS = 2000;
+
+    private final SsmFacade ssmFacade;
+
+    public CommandStatusPoller(SsmFacade ssmFacade) {
+        this.ssmFacade = ssmFacade;
+    }
+
+    /**
+     * Poll the command invocation until it settles, the maximum wait elapses, or the call budget is spent.
+     *
+     * @param commandId the SSM command ID
+     * @param instanceId the instance the command was sent to
+     * @return the last observed invocation, or null if SSM never reported one
+     */
+    public GetCommandInvocationResult pollUntilSettled(String commandId, String instanceId) {
+        return poll(commandId, instanceId, MAX_WAIT_MILLIS, true);
+    }
+
+    /**
+     * Poll the command invocation until it reaches a terminal status, the maximum wait elapses, or the call budget is
+     * spent.
+     *
+     * @param commandId the SSM command ID
+     * @param instanceId the instance the command was sent to
+     * @param maxWaitMillis the maximum time to wait for
+     * @return the last observed invocation, or null if SSM never reported one
+     */
+    public GetCommandInvocationResult pollUntilTerminal(String commandId, String instanceId, long maxWaitMillis) {
+        return poll(commandId, instanceId, maxWaitMillis, false);
+    }
+
+    private GetCommandInvocationResult poll(String commandId, String instanceId, long maxWaitMillis,
+            boolean settleWhenInProgress) {
+        Deadline deadline = Deadline.current();
+        long startMillis = System.currentTimeMillis();
+        long intervalMillis = INITIAL_INTERVAL_MILLIS;
+        Long inProgressSinceMillis = null;
+        GetCommandInvocationResult lastResult = null;
+
+        while (true) {
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            long sleepMillis = Math.min(intervalMillis, maxWaitMillis - elapsedMillis);
+            if (sleepMillis <= 0 || (deadline != null && deadline.getCallBudgetMillis() < sleepMillis)) {
+                return lastResult;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                log.warn("Polling of SSM command interrupted.");
+                Thread.currentThread().interrupt();
+                return lastResult;
+            }
+
+            try {
+                lastResult = ssmFacade.getCommand(commandId, instanceId);
+            } catch (InvocationDoesNotExistException e) {
+                // The invocation is not always visible right after SendCommand returns.
+                log.debug("Invocation not found yet for command " + commandId);
+            }
+
+            if (lastResult != null) {
+                String status = lastResult.getStatus();
+                if (TERMINAL_COMMAND_STATUS.contains(status)) {
+                    return lastResult;
+                }
+                if (settleWhenInProgress && IN_PROGRESS_STATUS.equals(status)) {
+                    long nowMillis = System.currentTimeMillis();
+                    if (inProgressSinceMillis == null) {
+                        inProgressSinceMillis = nowMillis;
+                    } else if (nowMillis - inProgressSinceMillis >= IN_PROGRESS_GRACE_MILLIS) {
+                        return lastResult;
+                    }
+                }
+            }
+
+            intervalMillis = Math.min(intervalMillis * 2, MAX_INTERVAL_MILLIS);
+        }
+    }
+}
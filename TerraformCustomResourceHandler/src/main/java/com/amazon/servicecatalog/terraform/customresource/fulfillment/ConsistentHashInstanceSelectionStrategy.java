@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.InstanceLoadTracker.LoadSnapshot;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps every request for a stack on the same fulfillment server, so its providers, modules and workspace stay
+ * warm across Create, Update and Delete.
+ *
+ * PhysicalResourceIds are mapped onto a consistent-hash ring of the running instances, so only the stacks of an
+ * instance that joins or leaves the fleet move. Load is bounded: an instance whose outstanding command count is
+ * above (1 + {@value #LOAD_BALANCE_FACTOR}) times the fleet average is skipped, and the stack overflows to the
+ * next instance on the ring.
+ */
+@Log4j2
+public class ConsistentHashInstanceSelectionStrategy implements InstanceSelectionStrategy {
+    private static final int VIRTUAL_NODES_PER_INSTANCE = 100;
+    private static final double LOAD_BALANCE_FACTOR = 0.25;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static volatile HashRing hashRing;
+
+    private final InstanceLoadTracker loadTracker;
+
+    public ConsistentHashInstanceSelectionStrategy(InstanceLoadTracker loadTracker) {
+        this.loadTracker = loadTracker;
+    }
+
+    @Override
+    public String selectInstance(List<String> instanceIds, CustomResourceRequest request) {
+        HashRing ring = getHashRing(instanceIds);
+        long keyHash = hash(request.getPhysicalResourceId());
+
+        LoadSnapshot loads;
+        try {
+            loads = loadTracker.getLoads();
+        } catch (RuntimeException e) {
+            log.warn("Unable to determine fulfillment server load. Selecting instance without load bound.", e);
+            return ring.walk(keyHash).get(0);
+        }
+
+        int totalLoad = ring.instanceIds.stream().mapToInt(loads::getLoad).sum();
+        double capacity = Math.ceil((1 + LOAD_BALANCE_FACTOR) * (totalLoad + 1) / ring.instanceIds.size());
+
+        List<String> candidates = ring.walk(keyHash);
+        for (String instanceId : candidates) {
+            if (loads.getLoad(instanceId) + 1 <= capacity) {
+                if (!instanceId.equals(candidates.get(0))) {
+                    log.info(String.format("Instance %s is above capacity %.0f. Overflowing %s to instance %s",
+                            candidates.get(0), capacity, request.getPhysicalResourceId(), instanceId));
+                }
+                return instanceId;
+            }
+        }
+        // Unreachable while capacity is above the average load, kept as a safe default.
+        return candidates.get(0);
+    }
+
+    @Override
+    public void recordDispatch(String instanceId) {
+        loadTracker.recordDispatch(instanceId);
+    }
+
+    private static HashRing getHashRing(List<String> instanceIds) {
+        ImmutableSortedSet<String> instances = ImmutableSortedSet.copyOf(instanceIds);
+        HashRing ring = hashRing;
+        if (ring == null || !ring.instanceIds.equals(instances)) {
+            ring = new HashRing(instances);
+            hashRing = ring;
+        }
+        return ring;
+    }
+
+    private static long hash(String value) {
+        return HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static class HashRing {
+        private final ImmutableSortedSet<String> instanceIds;
+        private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+        HashRing(ImmutableSortedSet<String> instanceIds) {
+            this.instanceIds = instanceIds;
+            for (String instanceId : instanceIds) {
+                for (int i = 0; i < VIRTUAL_NODES_PER_INSTANCE; i++) {
+                    ring.put(hash(instanceId + "#" + i), instanceId);
+                }
+            }
+        }
+
+        /**
+         * @return the distinct instances in ring order, starting at the owner of the key hash
+         */
+        List<String> walk(long keyHash) {
+            Set<String> order = new LinkedHashSet<>();
+            Iterable<String> clockwise = Iterables.concat(ring.tailMap(keyHash, true).values(),
+                    ring.headMap(keyHash, false).values());
+            for (String instanceId : clockwise) {
+                order.add(instanceId);
+                if (order.size() == instanceIds.size()) {
+                    break;
+                }
+            }
+            return ImmutableList.copyOf(order);
+        }
+    }
+}
@@ -27,21 +27,63 @@ public class EnvConfig {
     private static final String TERRAFORM_SERVER_TAG_VALUE_ENV_VAR = "TERRAFORM_SERVER_TAG_VALUE";
     private static final String COMMAND_OUTPUT_S3_BUCKET_ENV_VAR = "COMMAND_OUTPUT_S3_BUCKET";
     private static final String TERRAFORM_SSM_COMMAND_BUCKET_ENV_VAR = "TERRAFORM_SSM_COMMAND_BUCKET";
-    private static final String WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR = "WHITELISTED_TERRAFORM_ARTIFACT_BUCKET";
+    public static final String WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR = "WHITELISTED_TERRAFORM_ARTIFACT_BUCKET";
+    private static final String INSTANCE_SELECTION_STRATEGY_ENV_VAR = "INSTANCE_SELECTION_STRATEGY";
+    private static final String COMMAND_RECORD_STORE_ENV_VAR = "COMMAND_RECORD_STORE";
+    private static final String COMMAND_RECORD_STORE_PATH_ENV_VAR = "COMMAND_RECORD_STORE_PATH";
+    private static final String COMMAND_RECORD_CACHE_TTL_SECONDS_ENV_VAR = "COMMAND_RECORD_CACHE_TTL_SECONDS";
+    private static final String COMMAND_COMPLETION_TOPIC_ARN_ENV_VAR = "COMMAND_COMPLETION_TOPIC_ARN";
+    private static final String SEND_ARTIFACT_METADATA_ENV_VAR = "SEND_ARTIFACT_METADATA";
+    private static final String CLAIM_CHECK_SSM_COMMANDS_ENV_VAR = "CLAIM_CHECK_SSM_COMMANDS";
 
     private static final String DEFAULT_TERRAFORM_SERVER_TAG_KEY = "terraform-server-tag-key";
     private static final String DEFAULT_TERRAFORM_SERVER_TAG_VALUE = "terraform-server-tag-value";
+    private static final InstanceSelectionMode DEFAULT_INSTANCE_SELECTION_MODE = InstanceSelectionMode.LEAST_LOADED;
+    private static final CommandRecordStoreMode DEFAULT_COMMAND_RECORD_STORE_MODE = CommandRecordStoreMode.S3;
+    private static final String DEFAULT_COMMAND_RECORD_STORE_PATH = "/tmp/tf-command-records";
+    private static final long DEFAULT_COMMAND_RECORD_CACHE_TTL_SECONDS = 5;
 
     @NonNull private final String commandOutputS3Bucket;
     @NonNull private final String commandRecordS3Bucket;
     @NonNull private final Tag instanceTag;
     @NonNull private final String terraformArtifactS3Bucket;
+    @NonNull private final InstanceSelectionMode instanceSelectionMode;
+    @NonNull private final CommandRecordStoreMode commandRecordStoreMode;
+    @NonNull private final String commandRecordStorePath;
+    private final long commandRecordCacheTtlSeconds;
+
+    /**
+     * The topic fulfillment servers notify when a command completed, or null if requests for a stack with a command in
+     * progress are failed rather than queued.
+     */
+    private final String commandCompletionTopicArn;
+
+    /**
+     * Whether commands pin the Terraform artifact version with --artifact-metadata, which only wrapper 1.3 and later
+     * understand. Off until all fulfillment servers run such a wrapper.
+     */
+    private final boolean sendArtifactMetadata;
+
+    /**
+     * Whether large requests are passed to the wrapper as claim-checked envelopes, which only wrapper 1.3 and later
+     * redeem. Requests are passed inline otherwise, whatever their size.
+     */
+    private final boolean claimCheckSsmCommands;
 
     public static EnvConfig fromEnvironmentVariables() {
         return new EnvConfig(getRequiredEnv(COMMAND_OUTPUT_S3_BUCKET_ENV_VAR),
                 getRequiredEnv(TERRAFORM_SSM_COMMAND_BUCKET_ENV_VAR),
                 getInstanceTagFromEnv(),
-                getRequiredEnv(WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR));
+                getRequiredEnv(WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR),
+                getEnumFromEnv(InstanceSelectionMode.class, INSTANCE_SELECTION_STRATEGY_ENV_VAR,
+                        DEFAULT_INSTANCE_SELECTION_MODE),
+                getEnumFromEnv(CommandRecordStoreMode.class, COMMAND_RECORD_STORE_ENV_VAR,
+                        DEFAULT_COMMAND_RECORD_STORE_MODE),
+                getEnvOrDefault(COMMAND_RECORD_STORE_PATH_ENV_VAR, DEFAULT_COMMAND_RECORD_STORE_PATH),
+                getCommandRecordCacheTtlSecondsFromEnv(),
+                System.getenv(COMMAND_COMPLETION_TOPIC_ARN_ENV_VAR),
+                getBooleanFromEnv(SEND_ARTIFACT_METADATA_ENV_VAR, false),
+                getBooleanFromEnv(CLAIM_CHECK_SSM_COMMANDS_ENV_VAR, false));
     }
 
     public static String getRequiredEnv(String envVariable) {
@@ -52,10 +94,58 @@ public class EnvConfig {
         return envValue;
     }
 
+    /**
+     * @return the whitelisted bucket of TerraformArtifacts, or null if the environment variable is missing
+     */
+    public static String getTerraformArtifactS3BucketFromEnv() {
+        return System.getenv(WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR);
+    }
+
     private static Tag getInstanceTagFromEnv() {
         String serverTagKey = System.getenv(TERRAFORM_SERVER_TAG_KEY_ENV_VAR);
         String serverTagValue = System.getenv(TERRAFORM_SERVER_TAG_VALUE_ENV_VAR);
         return new Tag(serverTagKey != null ? serverTagKey : DEFAULT_TERRAFORM_SERVER_TAG_KEY,
                        serverTagValue != null ? serverTagValue : DEFAULT_TERRAFORM_SERVER_TAG_VALUE);
     }
+
+    private static String getEnvOrDefault(String envVariable, String defaultValue) {
+        String envValue = System.getenv(envVariable);
+        return envValue != null ? envValue : defaultValue;
+    }
+
+    private static <E extends Enum<E>> E getEnumFromEnv(Class<E> type, String envVariable, E defaultValue) {
+        String value = System.getenv(envVariable);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(String.format("Invalid value %s for environment variable %s", value, envVariable));
+        }
+    }
+
+    private static boolean getBooleanFromEnv(String envVariable, boolean defaultValue) {
+        String value = System.getenv(envVariable);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+            throw new RuntimeException(String.format("Invalid value %s for environment variable %s", value, envVariable));
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static long getCommandRecordCacheTtlSecondsFromEnv() {
+        String ttl = System.getenv(COMMAND_RECORD_CACHE_TTL_SECONDS_ENV_VAR);
+        if (ttl == null) {
+            return DEFAULT_COMMAND_RECORD_CACHE_TTL_SECONDS;
+        }
+        try {
+            return Long.parseLong(ttl);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(String.format("Invalid value %s for environment variable %s", ttl,
+                    COMMAND_RECORD_CACHE_TTL_SECONDS_ENV_VAR));
+        }
+    }
 }
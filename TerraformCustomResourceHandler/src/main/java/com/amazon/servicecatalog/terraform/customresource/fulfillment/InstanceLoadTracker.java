@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tracks the number of outstanding (Pending or InProgress) SSM commands per fulfillment server.
+ *
+ * The counts come from SSM and are shared across invocations for a few seconds. Commands dispatched by this
+ * container after the counts were taken are added on top, so a burst of requests is spread over the fleet instead
+ * of all landing on the server that was idle in the last snapshot.
+ */
+public class InstanceLoadTracker {
+    private static final long LOAD_SNAPSHOT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static volatile LoadSnapshot loadSnapshot;
+
+    private final SsmFacade ssmFacade;
+
+    public InstanceLoadTracker(SsmFacade ssmFacade) {
+        this.ssmFacade = ssmFacade;
+    }
+
+    /**
+     * @return a function from instance ID to its number of outstanding commands
+     */
+    public LoadSnapshot getLoads() {
+        LoadSnapshot snapshot = loadSnapshot;
+        if (snapshot == null || System.currentTimeMillis() - snapshot.takenAtMillis > LOAD_SNAPSHOT_TTL_MILLIS) {
+            snapshot = new LoadSnapshot(ssmFacade.getOutstandingCommandCounts());
+            loadSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    public void recordDispatch(String instanceId) {
+        LoadSnapshot snapshot = loadSnapshot;
+        if (snapshot != null) {
+            snapshot.dispatchedSinceSnapshot.merge(instanceId, 1, Integer::sum);
+        }
+    }
+
+    public static class LoadSnapshot {
+        private final long takenAtMillis = System.currentTimeMillis();
+        private final Map<String, Integer> outstandingCommands;
+        private final Map<String, Integer> dispatchedSinceSnapshot = new ConcurrentHashMap<>();
+
+        LoadSnapshot(Map<String, Integer> outstandingCommands) {
+            this.outstandingCommands = ImmutableMap.copyOf(outstandingCommands);
+        }
+
+        public int getLoad(String instanceId) {
+            return outstandingCommands.getOrDefault(instanceId, 0) + dispatchedSinceSnapshot.getOrDefault(instanceId, 0);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+
+/**
+ * The configurable ways of choosing a fulfillment server, see {@link InstanceSelectionStrategy}.
+ */
+public enum InstanceSelectionMode {
+    RANDOM,
+    LEAST_LOADED,
+    AFFINITY;
+
+    public InstanceSelectionStrategy createStrategy(SsmFacade ssmFacade) {
+        switch (this) {
+            case RANDOM:
+                return new RandomInstanceSelectionStrategy();
+            case LEAST_LOADED:
+                return new LeastLoadedInstanceSelectionStrategy(new InstanceLoadTracker(ssmFacade));
+            case AFFINITY:
+                return new ConsistentHashInstanceSelectionStrategy(new InstanceLoadTracker(ssmFacade));
+            default:
+                throw new IllegalStateException("Unknown instance selection mode " + this);
+        }
+    }
+}
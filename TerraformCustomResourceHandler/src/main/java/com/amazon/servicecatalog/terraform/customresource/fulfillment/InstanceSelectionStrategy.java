@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.List;
+
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+
+/**
+ * Chooses the fulfillment server that a Terraform command is sent to.
+ */
+public interface InstanceSelectionStrategy {
+
+    /**
+     * @param instanceIds the running fulfillment servers, never empty
+     * @param request the request the command is sent for
+     * @return the ID of the instance to send the command to
+     */
+    String selectInstance(List<String> instanceIds, CustomResourceRequest request);
+
+    /**
+     * Called after a command was sent to the instance, so strategies can account for it before SSM reports it.
+     *
+     * @param instanceId the instance the command was sent to
+     */
+    default void recordDispatch(String instanceId) {
+    }
+}
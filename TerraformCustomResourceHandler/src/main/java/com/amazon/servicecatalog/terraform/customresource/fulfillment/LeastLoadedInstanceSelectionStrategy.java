@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.InstanceLoadTracker.LoadSnapshot;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Sends new work to the fulfillment server with the fewest outstanding SSM commands, as reported by
+ * {@link InstanceLoadTracker}. Ties are broken randomly.
+ */
+@Log4j2
+public class LeastLoadedInstanceSelectionStrategy implements InstanceSelectionStrategy {
+
+    private final InstanceLoadTracker loadTracker;
+    private final InstanceSelectionStrategy fallbackStrategy = new RandomInstanceSelectionStrategy();
+
+    public LeastLoadedInstanceSelectionStrategy(InstanceLoadTracker loadTracker) {
+        this.loadTracker = loadTracker;
+    }
+
+    @Override
+    public String selectInstance(List<String> instanceIds, CustomResourceRequest request) {
+        LoadSnapshot loads;
+        try {
+            loads = loadTracker.getLoads();
+        } catch (RuntimeException e) {
+            log.warn("Unable to determine fulfillment server load. Falling back to random selection.", e);
+            return fallbackStrategy.selectInstance(instanceIds, request);
+        }
+
+        String selectedInstanceId = null;
+        int lowestLoad = Integer.MAX_VALUE;
+        int tiedInstances = 0;
+        for (String instanceId : instanceIds) {
+            int load = loads.getLoad(instanceId);
+            if (load < lowestLoad) {
+                lowestLoad = load;
+                selectedInstanceId = instanceId;
+                tiedInstances = 1;
+            } else if (load == lowestLoad && ThreadLocalRandom.current().nextInt(++tiedInstances) == 0) {
+                // Reservoir sampling keeps the choice among equally loaded instances uniform.
+                selectedInstanceId = instanceId;
+            }
+        }
+
+        log.info(String.format("Selected instance %s with %d outstanding commands", selectedInstanceId, lowestLoad));
+        return selectedInstanceId;
+    }
+
+    @Override
+    public void recordDispatch(String instanceId) {
+        loadTracker.recordDispatch(instanceId);
+    }
+}
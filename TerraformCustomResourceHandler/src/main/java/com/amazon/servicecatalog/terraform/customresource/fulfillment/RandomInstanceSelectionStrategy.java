@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+
+/**
+ * Picks a fulfillment server uniformly at random.
+ */
+public class RandomInstanceSelectionStrategy implements InstanceSelectionStrategy {
+
+    @Override
+    public String selectInstance(List<String> instanceIds, CustomResourceRequest request) {
+        return instanceIds.get(ThreadLocalRandom.current().nextInt(instanceIds.size()));
+    }
+}
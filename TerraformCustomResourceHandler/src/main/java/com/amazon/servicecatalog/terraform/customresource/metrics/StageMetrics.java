@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Collects the latencies of the stages and AWS calls of one unit of work (e.g. one SNS record) and emits them as a
+ * single CloudWatch Embedded Metric Format log line.
+ *
+ * The metrics of the current unit of work are bound to the thread, so facades time their calls with
+ * {@link #time(String, Supplier)} without having the metrics passed in. Calls made on threads without bound metrics,
+ * such as background cache refreshes, are not timed. Timing costs two nanoTime calls and a queue insert per call.
+ */
+@Log4j2
+public final class StageMetrics {
+    public static final String METRICS_LOGGER_NAME = "EmbeddedMetrics";
+
+    private static final String NAMESPACE = "ServiceCatalogTerraform";
+    private static final String UNIT = "Milliseconds";
+
+    private static final ThreadLocal<StageMetrics> current = new ThreadLocal<>();
+    private static final Logger metricsLogger = LogManager.getLogger(METRICS_LOGGER_NAME);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, String> dimensions;
+    private final Map<String, String> properties;
+    private final ConcurrentMap<String, Queue<Double>> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * @param dimensions the dimensions of all metrics, e.g. request type. May be empty.
+     */
+    public StageMetrics(Map<String, String> dimensions) {
+        this(dimensions, ImmutableMap.of());
+    }
+
+    /**
+     * @param dimensions the dimensions of all metrics, e.g. request type. May be empty.
+     * @param properties written to the log line without becoming dimensions, for values of high cardinality such as
+     *         the account, which would otherwise create a metric per value
+     */
+    public StageMetrics(Map<String, String> dimensions, Map<String, String> properties) {
+        this.dimensions = ImmutableMap.copyOf(dimensions);
+        this.properties = ImmutableMap.copyOf(properties);
+    }
+
+    /**
+     * @return the metrics bound to the current thread, or null if there are none
+     */
+    public static StageMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Bind the metrics to the current thread until the returned scope is closed.
+     */
+    public Scope bind() {
+        StageMetrics previous = current.get();
+        current.set(this);
+        return () -> {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        };
+    }
+
+    /**
+     * Run the action with the metrics bound to the current thread.
+     */
+    public <T> T call(Supplier<T> action) {
+        Scope scope = bind();
+        try {
+            return action.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    public void run(Runnable action) {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Time the action into the metrics bound to the current thread, if any.
+     */
+    public static <T> T time(String stage, Supplier<T> action) {
+        StageMetrics metrics = current.get();
+        if (metrics == null) {
+            return action.get();
+        }
+        long startNanos = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            metrics.record(stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    public static void time(String stage, Runnable action) {
+        time(stage, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public void record(String stage, long nanos) {
+        latencies.computeIfAbsent(stage, key -> new ConcurrentLinkedQueue<>())
+                .add((double) TimeUnit.NANOSECONDS.toMicros(nanos) / 1000);
+    }
+
+    /**
+     * Write the collected latencies as one EMF log line. Nothing is written if nothing was timed.
+     */
+    public void emit() {
+        if (latencies.isEmpty()) {
+            return;
+        }
+
+        List<Map<String, String>> metricDefinitions = new ArrayList<>();
+        Map<String, Object> root = new LinkedHashMap<>(properties);
+        root.putAll(dimensions);
+        latencies.forEach((stage, values) -> {
+            metricDefinitions.add(ImmutableMap.of("Name", stage, "Unit", UNIT));
+            root.put(stage, ImmutableList.copyOf(values));
+        });
+        root.put("_aws", ImmutableMap.of(
+                "Timestamp", System.currentTimeMillis(),
+                "CloudWatchMetrics", ImmutableList.of(ImmutableMap.of(
+                        "Namespace", NAMESPACE,
+                        "Dimensions", ImmutableList.of(ImmutableList.copyOf(dimensions.keySet())),
+                        "Metrics", metricDefinitions))));
+
+        try {
+            metricsLogger.info(mapper.writeValueAsString(root));
+        } catch (JsonProcessingException e) {
+            log.warn("Unable to write stage metrics.", e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
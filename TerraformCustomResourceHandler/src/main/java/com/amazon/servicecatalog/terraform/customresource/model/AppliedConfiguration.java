@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import java.util.Map;
+
+import lombok.Value;
+
+/**
+ * The configuration of the last Terraform run that succeeded for a resource, written by the fulfillment server along
+ * with the data of its response. It is removed before every run that may change the resources, so the resources of a
+ * resource with an applied configuration are known to match it.
+ */
+@Value
+public class AppliedConfiguration {
+    private String requestId;
+    private TerraformResourceProperties resourceProperties;
+
+    /**
+     * Null if the version of the artifact was not resolved when the run was dispatched.
+     */
+    private ArtifactMetadata artifactMetadata;
+
+    private Map<String, Object> data;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import static java.util.Objects.requireNonNull;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * An ARN of any partition (aws, aws-cn, aws-us-gov, ...), parsed once into its components:
+ * arn:partition:service:region:account-id:resource. The resource is everything after the fifth colon, so resources
+ * that contain colons are kept whole. Region and account ID are empty for global resources.
+ */
+@Getter
+@EqualsAndHashCode(of = "value")
+public final class Arn {
+    private static final String PREFIX = "arn:";
+
+    private final String value;
+    private final String partition;
+    private final String service;
+    private final String region;
+    private final String accountId;
+    private final String resource;
+
+    private Arn(String value, String partition, String service, String region, String accountId, String resource) {
+        this.value = value;
+        this.partition = partition;
+        this.service = service;
+        this.region = region;
+        this.accountId = accountId;
+        this.resource = resource;
+    }
+
+    /**
+     * @param arn the ARN string
+     * @return the parsed ARN
+     * @throws IllegalArgumentException if the string is not an ARN
+     */
+    public static Arn parse(String arn) {
+        requireNonNull(arn);
+        if (!arn.startsWith(PREFIX)) {
+            throw invalidArn(arn);
+        }
+
+        int partitionEnd = nextDelimiter(arn, PREFIX.length());
+        int serviceEnd = nextDelimiter(arn, partitionEnd + 1);
+        int regionEnd = nextDelimiter(arn, serviceEnd + 1);
+        int accountIdEnd = nextDelimiter(arn, regionEnd + 1);
+        if (partitionEnd == PREFIX.length() || serviceEnd == partitionEnd + 1 || accountIdEnd == arn.length() - 1) {
+            throw invalidArn(arn);
+        }
+
+        return new Arn(arn,
+                arn.substring(PREFIX.length(), partitionEnd),
+                arn.substring(partitionEnd + 1, serviceEnd),
+                arn.substring(serviceEnd + 1, regionEnd),
+                arn.substring(regionEnd + 1, accountIdEnd),
+                arn.substring(accountIdEnd + 1));
+    }
+
+    private static int nextDelimiter(String arn, int fromIndex) {
+        int index = arn.indexOf(':', fromIndex);
+        if (index < 0) {
+            throw invalidArn(arn);
+        }
+        return index;
+    }
+
+    private static IllegalArgumentException invalidArn(String arn) {
+        return new IllegalArgumentException(String.format("%s is not a valid ARN", arn));
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
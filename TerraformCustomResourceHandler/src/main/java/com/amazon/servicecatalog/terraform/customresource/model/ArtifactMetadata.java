@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * The version of a Terraform artifact that was resolved when its request was dispatched. The fulfillment server
+ * downloads exactly this version, and skips the download if it already has it.
+ */
+@Value
+public class ArtifactMetadata {
+    @JsonProperty("ETag")
+    @NonNull private String etag;
+
+    /**
+     * Null if versioning was never enabled on the artifact bucket.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String versionId;
+
+    private long size;
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * A pointer to a request that was too large to be sent inline and was stored in S3 instead. The key is derived from
+ * the SHA-256 digest of the uncompressed content, which the reader verifies.
+ */
+@Value
+public class ClaimCheck {
+    @NonNull private String bucket;
+    @NonNull private String key;
+    @NonNull private String sha256;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import java.util.Map;
+
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * The message a fulfillment server publishes to the command completion topic when a command completed, so the request
+ * queued for the stack, if any, is dispatched. It carries no request, so it cannot trigger anything but the dispatch
+ * of a request that was already validated when it was queued. Only the fulfillment servers may publish to the topic.
+ */
+@Value
+public class CommandCompletion {
+    public static final String MESSAGE_TYPE_ATTRIBUTE_KEY = "MessageType";
+    public static final String MESSAGE_TYPE = "CommandCompleted";
+
+    @NonNull private String physicalResourceId;
+    /**
+     * The request whose command completed. SSM still reports the command as executing while its script publishes
+     * this message, so the command is known to be done by its request instead.
+     */
+    @NonNull private String requestId;
+
+    /**
+     * @return whether the SNS record is a command completion rather than a CloudFormation request
+     */
+    public static boolean isCommandCompletion(SnsRecordContent recordContent) {
+        Map<String, SnsRecordContent.AttributeValue> attributes = recordContent.getMessageAttributes();
+        SnsRecordContent.AttributeValue messageType = attributes != null
+                ? attributes.get(MESSAGE_TYPE_ATTRIBUTE_KEY)
+                : null;
+        return messageType != null && MESSAGE_TYPE.equals(messageType.getValue());
+    }
+}
@@ -17,13 +17,11 @@ package com.amazon.servicecatalog.terraform.customresource.model;
 
 import static java.util.Objects.requireNonNull;
 
-import java.util.List;
-
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
 
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
@@ -32,20 +30,22 @@ import lombok.ToString;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Getter
-@ToString
-@EqualsAndHashCode
+@ToString(exclude = "parsedStackId")
+@EqualsAndHashCode(exclude = "parsedStackId")
 public class CustomResourceRequest {
 
     private final String serviceToken;
     private final RequestType requestType;
     @JsonProperty("ResponseURL") private final String responseUrl;
     private final String stackId;
+    @JsonIgnore private final StackId parsedStackId;
     private final String requestId;
     private final String resourceType;
     private final String logicalResourceId;
     private final String physicalResourceId;
     private final TerraformResourceProperties resourceProperties;
     private final TerraformResourceProperties oldResourceProperties;
+    @JsonInclude(JsonInclude.Include.NON_NULL) private final ClaimCheck claimCheck;
 
     @JsonCreator
     @Builder(toBuilder = true)
@@ -58,12 +58,14 @@ public class CustomResourceRequest {
             @JsonProperty("LogicalResourceId") String logicalResourceId,
             @JsonProperty("PhysicalResourceId") String physicalResourceId,
             @JsonProperty("ResourceProperties") TerraformResourceProperties resourceProperties,
-            @JsonProperty("OldResourceProperties") TerraformResourceProperties oldResourceProperties) {
+            @JsonProperty("OldResourceProperties") TerraformResourceProperties oldResourceProperties,
+            @JsonProperty("ClaimCheck") ClaimCheck claimCheck) {
 
         this.serviceToken = requireNonNull(serviceToken);
         this.requestType = requireNonNull(requestType);
         this.responseUrl = requireNonNull(responseUrl);
         this.stackId = requireNonNull(stackId);
+        this.parsedStackId = StackId.parse(stackId);
         this.requestId = requireNonNull(requestId);
         this.resourceType = requireNonNull(resourceType);
         this.logicalResourceId = requireNonNull(logicalResourceId);
@@ -71,13 +73,13 @@ public class CustomResourceRequest {
         if (physicalResourceId != null) {
             this.physicalResourceId = physicalResourceId;
         } else {
-            String relativeId = Iterables.getLast(Splitter.on(':').split(stackId));
-            List<String> relativeIdParts = Splitter.on('/').splitToList(relativeId);
             // stackName-logicalResourceId-UUID
-            this.physicalResourceId = String.format("%s-%s-%s", relativeIdParts.get(1), logicalResourceId, relativeIdParts.get(2));
+            this.physicalResourceId = parsedStackId.getStackName() + "-" + logicalResourceId + "-" + parsedStackId.getUniqueId();
         }
 
-        this.resourceProperties = requireNonNull(resourceProperties);
+        // A claim-checked envelope carries its resource properties in the claim-checked request.
+        this.resourceProperties = claimCheck != null ? resourceProperties : requireNonNull(resourceProperties);
         this.oldResourceProperties = oldResourceProperties;
+        this.claimCheck = claimCheck;
     }
 }
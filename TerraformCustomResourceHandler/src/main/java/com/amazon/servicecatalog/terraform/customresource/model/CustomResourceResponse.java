@@ -31,7 +31,7 @@ public class CustomResourceResponse {
     @NonNull private String requestId;
     @NonNull private String logicalResourceId;
     private boolean noEcho;
-    private Map<String, String> data;
+    private Map<String, Object> data;
 
     public static CustomResourceResponseBuilder builder(CustomResourceRequest request) {
         return new CustomResourceResponseBuilder()
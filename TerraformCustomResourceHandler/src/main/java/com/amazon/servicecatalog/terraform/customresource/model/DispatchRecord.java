@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * The command a CloudFormation request was dispatched as. A request is dispatched at most once, redeliveries and
+ * retries of the same RequestId are left to the command that was sent for it.
+ */
+@Value
+public class DispatchRecord {
+    @NonNull private String requestId;
+    @NonNull private String physicalResourceId;
+    @NonNull private String commandId;
+    @NonNull private String instanceId;
+    private long dispatchedAt;
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * A CloudFormation stack ID, arn:partition:cloudformation:region:account-id:stack/stack-name/unique-id, parsed once
+ * so the request path does not split it again for every component.
+ */
+@Getter
+@EqualsAndHashCode(of = "arn")
+public final class StackId {
+    private static final String STACK_RESOURCE_PREFIX = "stack/";
+
+    private final Arn arn;
+    private final String stackName;
+    private final String uniqueId;
+
+    private StackId(Arn arn, String stackName, String uniqueId) {
+        this.arn = arn;
+        this.stackName = stackName;
+        this.uniqueId = uniqueId;
+    }
+
+    /**
+     * @param stackId the stack ID of a CloudFormation request
+     * @return the parsed stack ID
+     * @throws IllegalArgumentException if the string is not a stack ID
+     */
+    public static StackId parse(String stackId) {
+        Arn arn = Arn.parse(stackId);
+        String resource = arn.getResource();
+        int stackNameEnd = resource.indexOf('/', STACK_RESOURCE_PREFIX.length());
+        if (!resource.startsWith(STACK_RESOURCE_PREFIX)
+                || stackNameEnd <= STACK_RESOURCE_PREFIX.length()
+                || stackNameEnd == resource.length() - 1) {
+            throw new IllegalArgumentException(String.format("%s is not a valid stack ID", stackId));
+        }
+        return new StackId(arn,
+                resource.substring(STACK_RESOURCE_PREFIX.length(), stackNameEnd),
+                resource.substring(stackNameEnd + 1));
+    }
+
+    public String getRegion() {
+        return arn.getRegion();
+    }
+
+    public String getAccountId() {
+        return arn.getAccountId();
+    }
+
+    @Override
+    public String toString() {
+        return arn.toString();
+    }
+}
@@ -15,13 +15,40 @@
 
 package com.amazon.servicecatalog.terraform.customresource.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import lombok.Builder;
 import lombok.NonNull;
 import lombok.Value;
 
-@Builder
+/**
+ * The last command dispatched for a stack. While a dispatch is in flight the record is a lease without a commandId,
+ * which keeps other requests for the stack from dispatching until it is written or expires.
+ *
+ * A request that arrives while a command is executing or being dispatched is kept in the record as the queued request
+ * and dispatched once the command completes. There is at most one queued request per stack, a newer one replaces it.
+ */
+@Builder(toBuilder = true)
 @Value
 public class TerraformCommandRecord {
-    @NonNull private String commandId;
+    private String commandId;
     @NonNull private String instanceId;
-}
\ No newline at end of file
+    private String requestId;
+    private long createdAt;
+
+    /**
+     * The JSON of the request waiting for the command to complete, or null if none is waiting.
+     */
+    private String queuedRequest;
+
+    /**
+     * When the request was queued, in milliseconds since the epoch, or 0 if no request is waiting or it was queued
+     * before this was recorded.
+     */
+    private long queuedAt;
+
+    @JsonIgnore
+    public boolean isPendingLease() {
+        return commandId == null;
+    }
+}
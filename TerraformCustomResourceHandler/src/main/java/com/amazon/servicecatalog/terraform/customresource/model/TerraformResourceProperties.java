@@ -15,10 +15,10 @@
 
 package com.amazon.servicecatalog.terraform.customresource.model;
 
-import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import lombok.Value;
 import lombok.extern.log4j.Log4j2;
@@ -27,41 +27,26 @@ import lombok.extern.log4j.Log4j2;
 @Value
 public class TerraformResourceProperties {
 
-    private static final String ROLE_ARN_REGEX = "arn:aws:iam::\\d{12}:role/[\\w+=,.@-]{1,64}";
-
     private String serviceToken;
     private String terraformArtifactUrl;
     private String launchRoleArn;
     private String dryRunId;
     private Map<String, Object> terraformVariables;
 
-    public void validateFields() {
-        requireField(serviceToken, "ServiceToken");
-        requireField(terraformArtifactUrl, "TerraformArtifactUrl");
-        requireField(launchRoleArn, "LaunchRoleArn");
-
-        if (!launchRoleArn.matches(ROLE_ARN_REGEX)) {
-            throw new RuntimeException(String.format("LaunchRoleArn %s does not match regex %s", launchRoleArn, ROLE_ARN_REGEX));
-        }
-
-        if (terraformVariables != null) {
-            List<String> invalidVariables = terraformVariables.entrySet().stream()
-                    .filter(e -> !(e.getValue() instanceof String || isListOfString(e.getValue())))
-                    .map(Map.Entry::getKey)
-                    .collect(ImmutableList.toImmutableList());
-            if (!invalidVariables.isEmpty()) {
-                throw new RuntimeException(String.format("Invalid Terraform variables %s. Must be string or list of strings", invalidVariables));
-            }
-        }
-    }
-
-    private void requireField(String field, String fieldName) {
-        if (field == null) {
-            throw new RuntimeException(String.format("Field %s is required", fieldName));
-        }
+    /**
+     * Whether running Terraform with these properties has the same effect as running it with the other ones: all
+     * properties but the ServiceToken are equal. Variables are compared regardless of their order, and no variables
+     * are the same as an empty map.
+     */
+    public boolean isEquivalentTo(TerraformResourceProperties other) {
+        return other != null
+                && Objects.equals(terraformArtifactUrl, other.terraformArtifactUrl)
+                && Objects.equals(launchRoleArn, other.launchRoleArn)
+                && Objects.equals(dryRunId, other.dryRunId)
+                && getVariablesOrEmpty().equals(other.getVariablesOrEmpty());
     }
 
-    private static boolean isListOfString(Object o) {
-        return o instanceof List && ((List) o).stream().allMatch(v -> v instanceof String);
+    private Map<String, Object> getVariablesOrEmpty() {
+        return terraformVariables != null ? terraformVariables : ImmutableMap.of();
     }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.model;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * A command record together with the ETag it was read with, used for conditional writes.
+ */
+@Value
+public class VersionedCommandRecord {
+    @NonNull private TerraformCommandRecord record;
+    @NonNull private String eTag;
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.IOException;
+
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller;
+import com.amazon.servicecatalog.terraform.customresource.model.AppliedConfiguration;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Reads the applied configurations that the fulfillment servers keep in the command output bucket, see
+ * {@link AppliedConfiguration}.
+ */
+@Log4j2
+public class AppliedConfigurationStore {
+
+    /**
+     * Shared with the Terraform wrapper, which writes and removes the objects.
+     */
+    private static final String S3_KEY_FORMAT = "applied-configurations/%s.json";
+    private static final int NOT_FOUND = 404;
+
+    private AmazonS3 s3;
+    private String bucketName;
+
+    public AppliedConfigurationStore(AmazonS3 s3, String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * @param physicalResourceId the physical ID of the resource
+     * @return the configuration of the last successful run for the resource, or null if it has none
+     */
+    public AppliedConfiguration getAppliedConfiguration(String physicalResourceId) {
+        String s3Key = String.format(S3_KEY_FORMAT, physicalResourceId);
+        log.info(String.format("Getting applied configuration from %s bucket %s path", bucketName, s3Key));
+        try (S3Object object = s3.getObject(Deadline.bound(new GetObjectRequest(bucketName, s3Key)))) {
+            return CustomResourceMarshaller.readAppliedConfiguration(IOUtils.toByteArray(object.getObjectContent()));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to read applied configuration %s", s3Key), e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A write-through near cache in front of another store. Reads are served from memory for the TTL, including the
+ * absence of a record, and successful writes update the cache.
+ *
+ * A record cached here can be stale if another container wrote it. Writes are still conditional on the backend, so a
+ * stale read ends in a {@link CommandRecordConflictException}, after which the entry is dropped and the caller can
+ * read again.
+ */
+public class CachingCommandRecordStore implements CommandRecordStore {
+    private static final long MAX_CACHED_RECORDS = 1000;
+
+    private final CommandRecordStore delegate;
+    private final Cache<String, Optional<VersionedCommandRecord>> cache;
+
+    public CachingCommandRecordStore(CommandRecordStore delegate, long ttlSeconds) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_RECORDS)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public VersionedCommandRecord getCommandRecord(String physicalResourceId) {
+        try {
+            return cache.get(physicalResourceId,
+                    () -> Optional.ofNullable(delegate.getCommandRecord(physicalResourceId))).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public String putCommandRecord(String physicalResourceId, TerraformCommandRecord record, String expectedETag) {
+        String eTag;
+        try {
+            eTag = delegate.putCommandRecord(physicalResourceId, record, expectedETag);
+        } catch (RuntimeException e) {
+            cache.invalidate(physicalResourceId);
+            throw e;
+        }
+        cache.put(physicalResourceId, Optional.of(new VersionedCommandRecord(record, eTag)));
+        return eTag;
+    }
+
+    @Override
+    public List<String> listPhysicalResourceIds() {
+        return delegate.listPhysicalResourceIds();
+    }
+
+    @Override
+    public void invalidate(String physicalResourceId) {
+        cache.invalidate(physicalResourceId);
+    }
+}
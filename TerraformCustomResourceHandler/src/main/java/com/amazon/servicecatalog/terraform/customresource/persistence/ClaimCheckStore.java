@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller;
+import com.amazon.servicecatalog.terraform.customresource.model.ClaimCheck;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Offloads requests that are larger than a threshold to S3, so only a small claim-checked envelope travels over SNS
+ * and SSM. The envelope is the request without its resource properties plus a {@link ClaimCheck}, so a receiver that
+ * cannot resolve it can still respond to CloudFormation. Requests are stored gzipped under the SHA-256 digest of
+ * their content, which makes writes idempotent and lets readers verify what they fetched.
+ *
+ * Claim checks are disabled if no bucket is configured, in which case requests are always sent inline.
+ */
+@Log4j2
+public class ClaimCheckStore {
+    public static final String CLAIM_CHECK_S3_BUCKET_ENV_VAR = "CLAIM_CHECK_S3_BUCKET";
+    private static final String CLAIM_CHECK_THRESHOLD_BYTES_ENV_VAR = "CLAIM_CHECK_THRESHOLD_BYTES";
+    private static final long DEFAULT_THRESHOLD_BYTES = 32 * 1024;
+    private static final long MAX_CONTENT_BYTES = 4 * 1024 * 1024;
+    private static final String S3_KEY_FORMAT = "claim-checks/%s.json.gz";
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final long thresholdBytes;
+
+    /**
+     * @param s3 the S3 client of the bucket's region
+     * @param bucketName the bucket of the claim-checked requests, or null to disable claim checks
+     * @param thresholdBytes the size of a serialized request above which it is claim-checked
+     */
+    public ClaimCheckStore(AmazonS3 s3, String bucketName, long thresholdBytes) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    public static ClaimCheckStore fromEnvironmentVariables(AmazonS3 s3) {
+        return new ClaimCheckStore(s3, System.getenv(CLAIM_CHECK_S3_BUCKET_ENV_VAR), getThresholdBytesFromEnv());
+    }
+
+    public boolean isEnabled() {
+        return bucketName != null;
+    }
+
+    /**
+     * @param requestJson a request as received from CloudFormation
+     * @return the request, or its claim-checked envelope if it is larger than the threshold
+     */
+    public String toMessage(String requestJson) {
+        return toMessage(requestJson, () -> CustomResourceMarshaller.readCustomResourceRequest(requestJson, true));
+    }
+
+    /**
+     * @param request a parsed request
+     * @return the serialized request, or its claim-checked envelope if it is larger than the threshold
+     */
+    public String toMessage(CustomResourceRequest request) {
+        return toMessage(CustomResourceMarshaller.write(request), () -> request);
+    }
+
+    private String toMessage(String requestJson, Supplier<CustomResourceRequest> request) {
+        // A char is at most three bytes in UTF-8, so short requests skip the encoding.
+        if (!isEnabled() || requestJson.length() * 3L <= thresholdBytes) {
+            return requestJson;
+        }
+        byte[] content = requestJson.getBytes(StandardCharsets.UTF_8);
+        if (content.length <= thresholdBytes) {
+            return requestJson;
+        }
+
+        ClaimCheck claimCheck = checkIn(content);
+        CustomResourceRequest envelope = request.get().toBuilder()
+                .resourceProperties(null)
+                .oldResourceProperties(null)
+                .claimCheck(claimCheck)
+                .build();
+        return CustomResourceMarshaller.write(envelope);
+    }
+
+    /**
+     * Store the content gzipped under its SHA-256 digest.
+     *
+     * @param content the content to store
+     * @return the claim check of the content
+     */
+    public ClaimCheck checkIn(byte[] content) {
+        verifyEnabled();
+        String sha256 = Hashing.sha256().hashBytes(content).toString();
+        String key = String.format(S3_KEY_FORMAT, sha256);
+        byte[] compressed = gzip(content);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(compressed.length);
+        metadata.setContentType("application/json");
+        metadata.setContentEncoding("gzip");
+        log.info(String.format("Claim-checking %d bytes (%d compressed) to bucket %s path %s", content.length,
+                compressed.length, bucketName, key));
+        // Requests may be written from other accounts, which have to hand the object over to the bucket owner.
+        PutObjectRequest request = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(compressed), metadata)
+                .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl);
+        s3.putObject(Deadline.bound(request));
+        return new ClaimCheck(bucketName, key, sha256);
+    }
+
+    /**
+     * Fetch the content of a claim check and verify it against the digest of the claim check.
+     *
+     * @param claimCheck the claim check, which must point to the configured bucket
+     * @return the uncompressed content
+     */
+    public byte[] redeem(ClaimCheck claimCheck) {
+        verifyEnabled();
+        if (!claimCheck.getBucket().equals(bucketName)) {
+            throw new RuntimeException(String.format("Claim check bucket %s is not the configured bucket %s",
+                    claimCheck.getBucket(), bucketName));
+        }
+
+        byte[] content;
+        try (S3Object object = s3.getObject(Deadline.bound(new GetObjectRequest(bucketName, claimCheck.getKey())));
+                InputStream input = new GZIPInputStream(object.getObjectContent())) {
+            content = IOUtils.toByteArray(ByteStreams.limit(input, MAX_CONTENT_BYTES + 1));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to read claim check %s", claimCheck.getKey()), e);
+        }
+        if (content.length > MAX_CONTENT_BYTES) {
+            throw new RuntimeException(String.format("Claim check %s exceeds %d bytes", claimCheck.getKey(),
+                    MAX_CONTENT_BYTES));
+        }
+        if (!Hashing.sha256().hashBytes(content).toString().equals(claimCheck.getSha256())) {
+            throw new RuntimeException(String.format("Claim check %s does not match its SHA-256 digest",
+                    claimCheck.getKey()));
+        }
+        return content;
+    }
+
+    private void verifyEnabled() {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Claim checks are not configured, "
+                    + CLAIM_CHECK_S3_BUCKET_ENV_VAR + " is not set");
+        }
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+
+    private static long getThresholdBytesFromEnv() {
+        String threshold = System.getenv(CLAIM_CHECK_THRESHOLD_BYTES_ENV_VAR);
+        if (threshold == null) {
+            return DEFAULT_THRESHOLD_BYTES;
+        }
+        try {
+            return Long.parseLong(threshold);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(String.format("Invalid value %s for environment variable %s", threshold,
+                    CLAIM_CHECK_THRESHOLD_BYTES_ENV_VAR));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+/**
+ * Thrown when a conditional command record write loses against a concurrent writer.
+ */
+public class CommandRecordConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CommandRecordConflictException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
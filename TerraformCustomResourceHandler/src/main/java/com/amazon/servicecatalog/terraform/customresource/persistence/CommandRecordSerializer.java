@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.IOException;
+
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The JSON format of command records shared by the stores that keep them as bytes.
+ */
+final class CommandRecordSerializer {
+
+    private static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private CommandRecordSerializer() {}
+
+    static TerraformCommandRecord read(byte[] input) {
+        try {
+            return mapper.readValue(input, TerraformCommandRecord.class);
+        } catch (IOException e) {
+            String message = String.format("Exception while deserializing SSM command record %s", new String(input));
+            throw new RuntimeException(message);
+        }
+    }
+
+    static byte[] write(TerraformCommandRecord record) {
+        try {
+            return mapper.writeValueAsBytes(record);
+        } catch(JsonProcessingException e) {
+            String message = String.format("Exception while serializing SSM command record for %s", record);
+            throw new RuntimeException(message);
+        }
+    }
+}
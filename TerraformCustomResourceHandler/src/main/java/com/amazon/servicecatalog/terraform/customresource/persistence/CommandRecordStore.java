@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.util.List;
+
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+
+/**
+ * Stores the last command record of each stack, keyed by physical resource ID. Writes are conditional on the
+ * version that was read, so the record can be used as a per-stack lease.
+ */
+public interface CommandRecordStore {
+
+    /**
+     * @param physicalResourceId the physical resource ID of the stack
+     * @return the record and its ETag, or null if no record exists
+     */
+    VersionedCommandRecord getCommandRecord(String physicalResourceId);
+
+    /**
+     * Write the command record of the stack if it has not changed since it was read.
+     *
+     * @param physicalResourceId the physical resource ID of the stack
+     * @param record the record to write
+     * @param expectedETag the ETag the current record was read with, or null if no record is expected to exist
+     * @return the ETag of the written record
+     * @throws CommandRecordConflictException if the record was created or changed by someone else in the meantime
+     */
+    String putCommandRecord(String physicalResourceId, TerraformCommandRecord record, String expectedETag);
+
+    /**
+     * List the stacks that have a command record, e.g. to find the requests queued for them. This reads the whole
+     * store, so it is not meant for the request path.
+     *
+     * @return the physical resource IDs of the stacks, which may include IDs that have no record
+     */
+    List<String> listPhysicalResourceIds();
+
+    /**
+     * Make the next read of the record go to the backend, for stores that cache records. Used when the record is known
+     * to have been written by another container, e.g. when a request was queued there.
+     *
+     * @param physicalResourceId the physical resource ID of the stack
+     */
+    default void invalidate(String physicalResourceId) {
+    }
+}
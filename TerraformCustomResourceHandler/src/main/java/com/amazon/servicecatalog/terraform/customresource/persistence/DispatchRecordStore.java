@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.amazon.servicecatalog.terraform.customresource.model.DispatchRecord;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps the dispatched requests by RequestId, so a request that SNS or CloudFormation delivers again is not dispatched
+ * a second time, see {@link DispatchRecord}. The records are kept in the command record bucket and expire with its
+ * lifecycle rule. Records are immutable, so recently read or written ones are also kept in a bounded index shared
+ * across warm invocations, which answers most redeliveries without a GetObject. Absent records are not indexed, since
+ * another container may dispatch the request.
+ */
+@Log4j2
+public class DispatchRecordStore {
+    private static final String S3_KEY_FORMAT = "dispatches/%s.json";
+    private static final int NOT_FOUND = 404;
+    private static final long MAX_INDEXED_RECORDS = 10000;
+    private static final long INDEX_EXPIRY_HOURS = 6;
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final Cache<String, DispatchRecord> index = CacheBuilder.newBuilder()
+            .maximumSize(MAX_INDEXED_RECORDS)
+            .expireAfterWrite(INDEX_EXPIRY_HOURS, TimeUnit.HOURS)
+            .build();
+
+    private AmazonS3 s3;
+    private String bucketName;
+
+    public DispatchRecordStore(AmazonS3 s3, String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * @param requestId the RequestId of a CloudFormation request
+     * @return the dispatch of the request, or null if it was not dispatched
+     */
+    public DispatchRecord getDispatchRecord(String requestId) {
+        DispatchRecord indexed = index.getIfPresent(requestId);
+        if (indexed != null) {
+            return indexed;
+        }
+
+        String s3Key = String.format(S3_KEY_FORMAT, requestId);
+        try (S3Object object = s3.getObject(Deadline.bound(new GetObjectRequest(bucketName, s3Key)))) {
+            DispatchRecord record = mapper.readValue(IOUtils.toByteArray(object.getObjectContent()),
+                    DispatchRecord.class);
+            index.put(requestId, record);
+            return record;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to read dispatch record %s", s3Key), e);
+        }
+    }
+
+    /**
+     * Record the dispatch of a request. The record is indexed even if writing it fails.
+     *
+     * @param record the dispatch
+     */
+    public void putDispatchRecord(DispatchRecord record) {
+        index.put(record.getRequestId(), record);
+
+        String s3Key = String.format(S3_KEY_FORMAT, record.getRequestId());
+        byte[] content;
+        try {
+            content = mapper.writeValueAsBytes(record);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(String.format("Unable to serialize dispatch record %s", record), e);
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        s3.putObject(Deadline.bound(
+                new PutObjectRequest(bucketName, s3Key, new ByteArrayInputStream(content), metadata)));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Keeps command records in memory. Records only live as long as the store, so this is meant for local runs and
+ * benchmarks rather than for Lambda deployments with more than one container.
+ */
+public class InMemoryCommandRecordStore implements CommandRecordStore {
+
+    private final ConcurrentMap<String, VersionedCommandRecord> records = new ConcurrentHashMap<>();
+
+    @Override
+    public VersionedCommandRecord getCommandRecord(String physicalResourceId) {
+        return records.get(physicalResourceId);
+    }
+
+    @Override
+    public String putCommandRecord(String physicalResourceId, TerraformCommandRecord record, String expectedETag) {
+        String eTag = UUID.randomUUID().toString();
+        records.compute(physicalResourceId, (key, current) -> {
+            String currentETag = current != null ? current.getETag() : null;
+            if (!Objects.equals(currentETag, expectedETag)) {
+                throw new CommandRecordConflictException(
+                        String.format("Command record %s was modified concurrently", physicalResourceId), null);
+            }
+            return new VersionedCommandRecord(record, eTag);
+        });
+        return eTag;
+    }
+
+    @Override
+    public List<String> listPhysicalResourceIds() {
+        return ImmutableList.copyOf(records.keySet());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps command records as files in a local directory, using the same key layout as the S3 store. The ETag of a
+ * record is the hash of its content. Conditional writes are atomic within one process.
+ */
+@Log4j2
+public class LocalFileCommandRecordStore implements CommandRecordStore {
+
+    private static final String KEY_FORMAT = "%s/tf-command-record";
+
+    private final Path rootDirectory;
+
+    public LocalFileCommandRecordStore(Path rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    @Override
+    public synchronized VersionedCommandRecord getCommandRecord(String physicalResourceId) {
+        Path path = getPath(physicalResourceId);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to read command record %s", path), e);
+        }
+        return new VersionedCommandRecord(CommandRecordSerializer.read(content), eTag(content));
+    }
+
+    @Override
+    public synchronized String putCommandRecord(String physicalResourceId, TerraformCommandRecord record, String expectedETag) {
+        VersionedCommandRecord current = getCommandRecord(physicalResourceId);
+        if (!Objects.equals(current != null ? current.getETag() : null, expectedETag)) {
+            throw new CommandRecordConflictException(
+                    String.format("Command record %s was modified concurrently", physicalResourceId), null);
+        }
+
+        Path path = getPath(physicalResourceId);
+        log.info(String.format("Writing Command Record to %s", path));
+        byte[] content = CommandRecordSerializer.write(record);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temporaryPath = Files.createTempFile(path.getParent(), "tf-command-record", ".tmp");
+            Files.write(temporaryPath, content);
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to write command record %s", path), e);
+        }
+        return eTag(content);
+    }
+
+    @Override
+    public synchronized List<String> listPhysicalResourceIds() {
+        try (Stream<Path> directories = Files.list(rootDirectory)) {
+            return directories.map(directory -> directory.getFileName().toString())
+                    .filter(physicalResourceId -> Files.isRegularFile(getPath(physicalResourceId)))
+                    .collect(ImmutableList.toImmutableList());
+        } catch (NoSuchFileException e) {
+            return ImmutableList.of();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to list command records in %s", rootDirectory), e);
+        }
+    }
+
+    private Path getPath(String physicalResourceId) {
+        return rootDirectory.resolve(String.format(KEY_FORMAT, physicalResourceId));
+    }
+
+    private static String eTag(byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+}
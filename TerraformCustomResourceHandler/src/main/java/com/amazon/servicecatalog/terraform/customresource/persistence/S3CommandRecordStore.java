@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.amazon.servicecatalog.terraform.customresource.facades.AwsClientRegistry;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import com.google.common.collect.ImmutableList;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps command records as objects in an S3 bucket, using conditional requests on the object ETag.
+ */
+@Log4j2
+public class S3CommandRecordStore implements CommandRecordStore {
+
+    private static final String S3_KEY_FORMAT = "%s/tf-command-record";
+    private static final String DELIMITER = "/";
+    private static final int NOT_FOUND = 404;
+    private static final int CONFLICT = 409;
+    private static final int PRECONDITION_FAILED = 412;
+
+    private AmazonS3 s3;
+    private String bucketName;
+
+    public S3CommandRecordStore(String bucketName) {
+        this(AwsClientRegistry.s3(), bucketName);
+    }
+
+    public S3CommandRecordStore(AmazonS3 s3, String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    @Override
+    public VersionedCommandRecord getCommandRecord(String physicalResourceId) {
+        String s3Key = String.format(S3_KEY_FORMAT, physicalResourceId);
+        log.info(String.format("Getting Command Record from %s bucket %s path", bucketName, s3Key));
+        try (S3Object object = s3.getObject(Deadline.bound(new GetObjectRequest(bucketName, s3Key)))) {
+            byte[] record = IOUtils.toByteArray(object.getObjectContent());
+            return new VersionedCommandRecord(CommandRecordSerializer.read(record),
+                    object.getObjectMetadata().getETag());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to read command record %s", s3Key), e);
+        }
+    }
+
+    @Override
+    public String putCommandRecord(String physicalResourceId, TerraformCommandRecord record, String expectedETag) {
+        String s3Key = String.format(S3_KEY_FORMAT, physicalResourceId);
+        log.info(String.format("Putting Command Record to %s bucket %s path", bucketName, s3Key));
+
+        byte[] content = CommandRecordSerializer.write(record);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        PutObjectRequest request = Deadline.bound(
+                new PutObjectRequest(bucketName, s3Key, new ByteArrayInputStream(content), metadata));
+        if (expectedETag == null) {
+            request.putCustomRequestHeader("If-None-Match", "*");
+        } else {
+            request.putCustomRequestHeader("If-Match", quote(expectedETag));
+        }
+
+        try {
+            return s3.putObject(request).getETag();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == PRECONDITION_FAILED || e.getStatusCode() == CONFLICT) {
+                String message = String.format("Command record %s was modified concurrently", s3Key);
+                throw new CommandRecordConflictException(message, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * List the top-level prefixes of the bucket, one per stack. Prefixes of other objects in the bucket, such as the
+     * dispatch records, are listed too, and read as having no record.
+     */
+    @Override
+    public List<String> listPhysicalResourceIds() {
+        ImmutableList.Builder<String> physicalResourceIds = ImmutableList.builder();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withDelimiter(DELIMITER);
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(Deadline.bound(request));
+            for (String prefix : result.getCommonPrefixes()) {
+                physicalResourceIds.add(prefix.substring(0, prefix.length() - DELIMITER.length()));
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return physicalResourceIds.build();
+    }
+
+    private static String quote(String eTag) {
+        return eTag.startsWith("\"") ? eTag : "\"" + eTag + "\"";
+    }
+}
@@ -15,22 +15,23 @@
 
 package com.amazon.servicecatalog.terraform.customresource.util;
 
-import com.google.common.base.Splitter;
+import com.amazon.servicecatalog.terraform.customresource.model.Arn;
 
+/**
+ * Shorthands for single components of an ARN, see {@link Arn} to read several components of the same ARN.
+ */
 public final class ArnParser {
-    private static final Splitter DELIMITER_SPLITTER = Splitter.on(':');
-
     private ArnParser() {}
 
     public static String getRegion(String arn) {
-        return DELIMITER_SPLITTER.splitToList(arn).get(3);
+        return Arn.parse(arn).getRegion();
     }
 
     public static String getAccountId(String arn) {
-        return DELIMITER_SPLITTER.splitToList(arn).get(4);
+        return Arn.parse(arn).getAccountId();
     }
 
     public static String getRelativeId(String arn) {
-        return DELIMITER_SPLITTER.splitToList(arn).get(5);
+        return Arn.parse(arn).getResource();
     }
 }
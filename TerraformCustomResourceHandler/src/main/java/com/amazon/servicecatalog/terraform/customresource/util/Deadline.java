@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.util;
+
+import java.util.function.Supplier;
+
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * The time left in one Lambda invocation. Like {@link StageMetrics}, the deadline of the current invocation is bound
+ * to the thread, so facades and stores bound their calls with {@link #bound(AmazonWebServiceRequest)} without having
+ * it passed in, and {@link ParallelStage} carries it over to its worker threads.
+ *
+ * AWS calls may use the time left minus a reserve, which is kept for posting the FAILED response of a request whose
+ * calls ran out of time. Each call is bounded by a client execution timeout, which covers all of its retries, and by
+ * a request timeout per attempt. Calls made on threads without a bound deadline, such as background cache refreshes,
+ * are bounded by the same per-call maximums.
+ */
+public final class Deadline {
+    /** Kept back from AWS calls, so a FAILED response can always be posted. */
+    public static final long RESPONSE_RESERVE_MILLIS = 10000;
+    /** The longest an AWS call may take including its retries. */
+    public static final int MAX_CALL_MILLIS = 30000;
+    /** The longest a single attempt of an AWS call may take. */
+    public static final int MAX_ATTEMPT_MILLIS = 10000;
+    /** A call is not started with less time left, since it would time out anyway. */
+    private static final long MIN_CALL_MILLIS = 1000;
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    private final long expiresAtMillis;
+
+    private Deadline(long expiresAtMillis) {
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * @param context the context of the Lambda invocation
+     * @return the deadline of the invocation
+     */
+    public static Deadline fromContext(Context context) {
+        return new Deadline(System.currentTimeMillis() + context.getRemainingTimeInMillis());
+    }
+
+    /**
+     * @return the deadline bound to the current thread, or null if there is none
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Bind the deadline to the current thread until the returned scope is closed.
+     */
+    public Scope bind() {
+        Deadline previous = current.get();
+        current.set(this);
+        return () -> {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        };
+    }
+
+    /**
+     * Run the action with the deadline bound to the current thread.
+     */
+    public <T> T call(Supplier<T> action) {
+        Scope scope = bind();
+        try {
+            return action.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    public void run(Runnable action) {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return the time left until the invocation times out, including the response reserve
+     */
+    public long getRemainingMillis() {
+        return expiresAtMillis - System.currentTimeMillis();
+    }
+
+    /**
+     * @return the time left for AWS calls, excluding the response reserve
+     */
+    public long getCallBudgetMillis() {
+        return getRemainingMillis() - RESPONSE_RESERVE_MILLIS;
+    }
+
+    /**
+     * Bound the AWS call of the request by the deadline bound to the current thread and the per-call maximums.
+     *
+     * @param request the request of the call
+     * @return the request
+     * @throws RuntimeException if too little time is left for the call
+     */
+    public static <T extends AmazonWebServiceRequest> T bound(T request) {
+        Deadline deadline = current.get();
+        long budgetMillis = deadline != null ? deadline.getCallBudgetMillis() : MAX_CALL_MILLIS;
+        if (budgetMillis < MIN_CALL_MILLIS) {
+            throw new RuntimeException(String.format("Not enough time left in the Lambda invocation to call %s.",
+                    request.getClass().getSimpleName().replaceFirst("Request$", "")));
+        }
+        request.setSdkClientExecutionTimeout((int) Math.min(budgetMillis, MAX_CALL_MILLIS));
+        request.setSdkRequestTimeout((int) Math.min(budgetMillis, MAX_ATTEMPT_MILLIS));
+        return request;
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
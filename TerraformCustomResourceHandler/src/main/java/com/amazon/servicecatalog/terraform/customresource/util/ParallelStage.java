@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.ThreadContext;
+
+import com.amazon.servicecatalog.terraform.customresource.metrics.StageMetrics;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs independent tasks concurrently on a bounded, container-wide executor and waits for all of them. The first
+ * failure cancels the remaining tasks and is rethrown by {@link #join()}.
+ *
+ * Tasks must not fork into a stage themselves, since they would wait for threads of the same pool. Tasks that depend
+ * on each other are chained inside one task instead.
+ */
+public class ParallelStage {
+    private static final int MAX_THREADS = 16;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("parallel-stage-%d").setDaemon(true).build());
+
+    private final CompletionService<Object> completionService = new ExecutorCompletionService<>(executor);
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    /**
+     * Start a task of the stage.
+     *
+     * @param task the task
+     * @return the future of the task, whose result can be read with {@link #getResult(Future)} after {@link #join()}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> fork(Callable<T> task) {
+        // Carry the logging context (e.g. AWSRequestId), the stage metrics and the deadline over to the worker threads.
+        Map<String, String> threadContext = ThreadContext.getImmutableContext();
+        StageMetrics metrics = StageMetrics.current();
+        Deadline deadline = Deadline.current();
+        Future<T> future = (Future<T>) completionService.submit(() -> {
+            ThreadContext.putAll(threadContext);
+            StageMetrics.Scope metricsScope = metrics != null ? metrics.bind() : null;
+            Deadline.Scope deadlineScope = deadline != null ? deadline.bind() : null;
+            try {
+                return task.call();
+            } finally {
+                if (deadlineScope != null) {
+                    deadlineScope.close();
+                }
+                if (metricsScope != null) {
+                    metricsScope.close();
+                }
+                ThreadContext.clearMap();
+            }
+        });
+        futures.add(future);
+        return future;
+    }
+
+    public Future<Void> fork(Runnable task) {
+        return fork(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Wait until all tasks completed. On the first failure the other tasks are cancelled and the failure is rethrown.
+     */
+    public void join() {
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                completionService.take().get();
+            }
+        } catch (ExecutionException e) {
+            throw failed(e);
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+    }
+
+    /**
+     * Wait until one task of the stage completed, regardless of the others, e.g. when its result decides whether the
+     * results of the others are needed at all. The stage can still be joined or cancelled afterwards. If the task
+     * failed, the other tasks are cancelled and the failure is rethrown.
+     *
+     * @param future a future returned by {@link #fork(Callable)}
+     * @return the result of the task
+     */
+    public <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw failed(e);
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+    }
+
+    /**
+     * Cancel the tasks that have not completed yet, when their results are no longer needed.
+     */
+    public void cancel() {
+        futures.forEach(future -> future.cancel(true));
+    }
+
+    /**
+     * Get the result of a task of a joined stage.
+     */
+    public static <T> T getResult(Future<T> future) {
+        if (!future.isDone()) {
+            throw new IllegalStateException("The stage of the task has not been joined.");
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RuntimeException failed(ExecutionException e) {
+        cancel();
+        Throwable cause = e.getCause();
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+
+    private RuntimeException interrupted(InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+        return new RuntimeException("Interrupted while waiting for concurrent tasks.", e);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.util;
+
+import java.net.URI;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Reads the expiry of the pre-signed S3 URLs CloudFormation sends responses to, in the same way as the Terraform
+ * wrapper: the Expires parameter of SigV2 URLs, or X-Amz-Date plus X-Amz-Expires of SigV4 URLs.
+ */
+public final class ResponseUrls {
+    private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
+
+    private ResponseUrls() {}
+
+    /**
+     * @param responseUrl the ResponseURL of a request
+     * @return whether the URL expired, false if its expiry cannot be read
+     */
+    public static boolean isExpired(String responseUrl) {
+        Instant expiry = getExpiry(responseUrl);
+        return expiry != null && expiry.isBefore(Instant.now());
+    }
+
+    private static Instant getExpiry(String responseUrl) {
+        String expires = null;
+        String amzDate = null;
+        String amzExpires = null;
+        try {
+            String query = URI.create(responseUrl).getRawQuery();
+            if (query == null) {
+                return null;
+            }
+            for (String parameter : QUERY_SPLITTER.split(query)) {
+                int separator = parameter.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String name = parameter.substring(0, separator);
+                String value = parameter.substring(separator + 1);
+                if ("Expires".equals(name)) {
+                    expires = value;
+                } else if ("X-Amz-Date".equals(name)) {
+                    amzDate = value;
+                } else if ("X-Amz-Expires".equals(name)) {
+                    amzExpires = value;
+                }
+            }
+
+            if (expires != null) {
+                return Instant.ofEpochSecond(Long.parseLong(expires));
+            }
+            if (amzDate != null && amzExpires != null) {
+                return LocalDateTime.parse(amzDate, AMZ_DATE_FORMAT).toInstant(ZoneOffset.UTC)
+                        .plusSeconds(Long.parseLong(amzExpires));
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            // A URL of an unexpected format is not considered expired.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.validation;
+
+import static com.amazon.servicecatalog.terraform.customresource.TerraformLaunchRequestHandler.ACCOUNT_ID_ATTRIBUTE_KEY;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.EnvConfig;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformResourceProperties;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Validates the properties of a request in a single pass and reports every violation rather than the first one, so
+ * invalid requests are rejected right after parsing, before any AWS call is made. The checks are:
+ * <ul>
+ *     <li>ServiceToken, TerraformArtifactUrl and LaunchRoleArn are set</li>
+ *     <li>LaunchRoleArn is an IAM role ARN of any partition</li>
+ *     <li>the account of the LaunchRoleArn is the requester account (the AccountId SNS attribute), to prevent cross
+ *     account access</li>
+ *     <li>the TerraformArtifactUrl is an S3 URL of the whitelisted bucket</li>
+ *     <li>TerraformVariables are strings or lists of strings</li>
+ * </ul>
+ */
+public class RequestValidator {
+    private static final Pattern ROLE_ARN_PATTERN =
+            Pattern.compile("arn:aws(?:-[a-z]+)*:iam::(\\d{12}):role/[\\w+=,.@-]{1,64}");
+
+    private static final String S3_SCHEME = "s3";
+    /**
+     * AmazonS3URI only matches the start of the host, so bucket.s3.amazonaws.com.example.com would pass without this.
+     */
+    private static final List<String> S3_DOMAINS = ImmutableList.of(".amazonaws.com", ".amazonaws.com.cn");
+
+    private final String whitelistedArtifactBucket;
+
+    /**
+     * @param whitelistedArtifactBucket the only bucket TerraformArtifacts may be read from, or null if the Lambda
+     *         is not configured with one, in which case every request is rejected
+     */
+    public RequestValidator(String whitelistedArtifactBucket) {
+        this.whitelistedArtifactBucket = whitelistedArtifactBucket;
+    }
+
+    public static RequestValidator fromEnvironmentVariables() {
+        return new RequestValidator(EnvConfig.getTerraformArtifactS3BucketFromEnv());
+    }
+
+    /**
+     * @param request the parsed custom resource request
+     * @param recordContent the SNS record that carried the request
+     * @return all violations, empty if the request is valid
+     */
+    public List<String> validate(CustomResourceRequest request, SnsRecordContent recordContent) {
+        TerraformResourceProperties properties = request.getResourceProperties();
+        List<String> violations = new ArrayList<>();
+
+        requireField(properties.getServiceToken(), "ServiceToken", violations);
+        if (requireField(properties.getTerraformArtifactUrl(), "TerraformArtifactUrl", violations)) {
+            verifyWhitelistedTerraformArtifactSource(properties.getTerraformArtifactUrl(), violations);
+        }
+        if (requireField(properties.getLaunchRoleArn(), "LaunchRoleArn", violations)) {
+            Matcher launchRoleArn = ROLE_ARN_PATTERN.matcher(properties.getLaunchRoleArn());
+            if (launchRoleArn.matches()) {
+                verifyNoCrossAccountAccess(launchRoleArn.group(1), recordContent, violations);
+            } else {
+                violations.add(String.format("LaunchRoleArn %s does not match regex %s", properties.getLaunchRoleArn(),
+                        ROLE_ARN_PATTERN.pattern()));
+            }
+        }
+        verifyTerraformVariables(properties.getTerraformVariables(), violations);
+
+        return violations;
+    }
+
+    private static boolean requireField(String field, String fieldName, List<String> violations) {
+        if (field == null) {
+            violations.add(String.format("Field %s is required", fieldName));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verify that the S3 bucket of the TerraformArtifactUrl is whitelisted
+     */
+    private void verifyWhitelistedTerraformArtifactSource(String terraformArtifactUrl, List<String> violations) {
+        if (whitelistedArtifactBucket == null) {
+            violations.add("Required environment variable is missing from Lambda: "
+                    + EnvConfig.WHITELISTED_TERRAFORM_ARTIFACT_BUCKET_ENV_VAR);
+            return;
+        }
+
+        // The SDK parses every S3 URL form (virtual-hosted, path-style, dualstack, regional and China endpoints).
+        AmazonS3URI s3URI;
+        try {
+            s3URI = new AmazonS3URI(terraformArtifactUrl);
+        } catch (IllegalArgumentException e) {
+            violations.add("Invalid TerraformArtifactUrl. " + e.getMessage());
+            return;
+        }
+        if (!S3_SCHEME.equals(s3URI.getURI().getScheme()) && !isAwsHost(s3URI.getURI().getHost())) {
+            violations.add("Invalid TerraformArtifactUrl. Hostname is not an AWS endpoint: " + terraformArtifactUrl);
+            return;
+        }
+
+        if (!whitelistedArtifactBucket.equals(s3URI.getBucket())) {
+            violations.add(String.format("Invalid TerraformArtifactUrl. TerraformArtifacts must be contained in the" +
+                    " following bucket: %s", whitelistedArtifactBucket));
+        }
+    }
+
+    private static boolean isAwsHost(String host) {
+        String lowerCaseHost = host.toLowerCase(Locale.ROOT);
+        return S3_DOMAINS.stream().anyMatch(lowerCaseHost::endsWith);
+    }
+
+    /**
+     * Prevent cross-account access by verifying that the account of the user making the request (identified by the
+     * AccountId SNS attribute) matches the account where the resources will be created (identified by the account
+     * of the LaunchRoleARN).
+     */
+    private static void verifyNoCrossAccountAccess(String launchRoleAccountId, SnsRecordContent recordContent,
+            List<String> violations) {
+        Map<String, SnsRecordContent.AttributeValue> attributes = recordContent.getMessageAttributes();
+        SnsRecordContent.AttributeValue requesterAccountId = attributes != null
+                ? attributes.get(ACCOUNT_ID_ATTRIBUTE_KEY)
+                : null;
+        if (requesterAccountId == null || requesterAccountId.getValue() == null) {
+            violations.add("SNS input message does not contain AccountId attribute");
+        } else if (!requesterAccountId.getValue().equals(launchRoleAccountId)) {
+            violations.add("To prevent permissions escalation TerraformStacks cannot use a LaunchRoleArn " +
+                    "that references another account.");
+        }
+    }
+
+    private static void verifyTerraformVariables(Map<String, Object> terraformVariables, List<String> violations) {
+        if (terraformVariables == null) {
+            return;
+        }
+
+        ImmutableList.Builder<String> invalidVariables = null;
+        for (Map.Entry<String, Object> variable : terraformVariables.entrySet()) {
+            if (!(variable.getValue() instanceof String || isListOfString(variable.getValue()))) {
+                if (invalidVariables == null) {
+                    invalidVariables = ImmutableList.builder();
+                }
+                invalidVariables.add(variable.getKey());
+            }
+        }
+        if (invalidVariables != null) {
+            violations.add(String.format("Invalid Terraform variables %s. Must be string or list of strings",
+                    invalidVariables.build()));
+        }
+    }
+
+    private static boolean isListOfString(Object o) {
+        if (!(o instanceof List)) {
+            return false;
+        }
+        for (Object value : (List<?>) o) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
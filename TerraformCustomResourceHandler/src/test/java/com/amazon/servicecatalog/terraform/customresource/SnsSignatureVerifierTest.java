@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.junit.Test;
+
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.google.common.collect.ImmutableList;
+
+public class SnsSignatureVerifierTest {
+    private static final String TOPIC_ARN = "arn:aws:sns:us-west-2:123456789012:terraform-fulfillment-topic";
+    private static final String CERTIFICATE_URL =
+            "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-0123456789abcdef.pem";
+
+    @Test
+    public void buildsStringToSignInDocumentedOrder() {
+        SnsRecordContent notification = notification();
+
+        assertEquals("Message\n{\"RequestType\":\"Create\"}\n"
+                + "MessageId\nmessage-1\n"
+                + "Timestamp\n2018-01-01T00:00:00.000Z\n"
+                + "TopicArn\n" + TOPIC_ARN + "\n"
+                + "Type\nNotification\n", SnsSignatureVerifier.buildStringToSign(notification));
+    }
+
+    @Test
+    public void includesSubjectInStringToSignWhenPresent() {
+        SnsRecordContent notification = notification();
+        notification.setSubject("subject");
+
+        assertEquals("Message\n{\"RequestType\":\"Create\"}\n"
+                + "MessageId\nmessage-1\n"
+                + "Subject\nsubject\n"
+                + "Timestamp\n2018-01-01T00:00:00.000Z\n"
+                + "TopicArn\n" + TOPIC_ARN + "\n"
+                + "Type\nNotification\n", SnsSignatureVerifier.buildStringToSign(notification));
+    }
+
+    @Test
+    public void rejectsStringToSignWithMissingField() {
+        SnsRecordContent notification = notification();
+        notification.setTimestamp(null);
+
+        assertThrows(RuntimeException.class, () -> SnsSignatureVerifier.buildStringToSign(notification));
+    }
+
+    @Test
+    public void verifiesSignatureOverStringToSign() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        SnsRecordContent notification = signedNotification(keyPair,
+                "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-verifies.pem");
+
+        SnsSignatureVerifier.verify(notification);
+
+        notification.setMessage("{\"RequestType\":\"Delete\"}");
+        assertThrows(RuntimeException.class, () -> SnsSignatureVerifier.verify(notification));
+    }
+
+    @Test
+    public void rejectsSignatureOfOtherKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        SnsRecordContent notification = signedNotification(generator.generateKeyPair(),
+                "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-other-key.pem");
+        SnsSignatureVerifier.cacheCertificate(notification.getSigningCertUrl(),
+                certificate("CN=sns.amazonaws.com", generator.generateKeyPair()));
+
+        assertThrows(RuntimeException.class, () -> SnsSignatureVerifier.verify(notification));
+    }
+
+    @Test
+    public void acceptsCertificateUrlOfTopicRegion() {
+        assertEquals(CERTIFICATE_URL, SnsSignatureVerifier.validateCertificateUrl(CERTIFICATE_URL, TOPIC_ARN).toString());
+        String chinaUrl = "https://sns.cn-north-1.amazonaws.com.cn/SimpleNotificationService-0123456789abcdef.pem";
+        SnsSignatureVerifier.validateCertificateUrl(chinaUrl,
+                "arn:aws-cn:sns:cn-north-1:123456789012:terraform-fulfillment-topic");
+    }
+
+    @Test
+    public void rejectsCertificateUrlsOutsideSnsEndpoint() {
+        List<String> urls = ImmutableList.of(
+                "http://sns.us-west-2.amazonaws.com/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-east-1.amazonaws.com/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-west-2.amazonaws.com.evil.com/SimpleNotificationService-0123456789abcdef.pem",
+                "https://evil.com/sns.us-west-2.amazonaws.com/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-west-2.amazonaws.com@evil.com/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-west-2.amazonaws.com:8443/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-west-2.amazonaws.com/evil/SimpleNotificationService-0123456789abcdef.pem",
+                "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-0123456789abcdef.pem.evil");
+        for (String url : urls) {
+            assertThrows(url, RuntimeException.class, () -> SnsSignatureVerifier.validateCertificateUrl(url, TOPIC_ARN));
+        }
+    }
+
+    @Test
+    public void acceptsCertificateIssuedToSns() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+
+        SnsSignatureVerifier.verifyCommonName(certificate("CN=sns.amazonaws.com,O=Amazon,C=US", keyPair));
+    }
+
+    @Test
+    public void rejectsCertificateNotIssuedToSns() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        List<String> subjects = ImmutableList.of(
+                "CN=evil.com",
+                "CN=sns.amazonaws.com.evil.com",
+                "O=sns.amazonaws.com,CN=evil.com",
+                "OU=sns.amazonaws.com");
+        for (String subject : subjects) {
+            X509Certificate certificate = certificate(subject, keyPair);
+            assertThrows(subject, GeneralSecurityException.class,
+                    () -> SnsSignatureVerifier.verifyCommonName(certificate));
+        }
+    }
+
+    private static SnsRecordContent signedNotification(KeyPair keyPair, String signingCertUrl) throws Exception {
+        SnsRecordContent notification = notification();
+        notification.setSigningCertUrl(signingCertUrl);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(SnsSignatureVerifier.buildStringToSign(notification).getBytes(StandardCharsets.UTF_8));
+        notification.setSignature(Base64.getEncoder().encodeToString(signature.sign()));
+        SnsSignatureVerifier.cacheCertificate(signingCertUrl, certificate("CN=sns.amazonaws.com", keyPair));
+        return notification;
+    }
+
+    private static SnsRecordContent notification() {
+        SnsRecordContent notification = new SnsRecordContent();
+        notification.setType("Notification");
+        notification.setMessageId("message-1");
+        notification.setTopicArn(TOPIC_ARN);
+        notification.setMessage("{\"RequestType\":\"Create\"}");
+        notification.setTimestamp("2018-01-01T00:00:00.000Z");
+        notification.setSignatureVersion("2");
+        notification.setSigningCertUrl(CERTIFICATE_URL);
+        return notification;
+    }
+
+    private static X509Certificate certificate(String subject, KeyPair keyPair) {
+        X509Certificate certificate = mock(X509Certificate.class);
+        when(certificate.getSubjectX500Principal()).thenReturn(new X500Principal(subject));
+        when(certificate.getPublicKey()).thenReturn(keyPair.getPublic());
+        return certificate;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.fulfillment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazon.servicecatalog.terraform.customresource.CustomResourceMarshaller;
+import com.amazon.servicecatalog.terraform.customresource.facades.Ec2Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.S3Facade;
+import com.amazon.servicecatalog.terraform.customresource.facades.SsmFacade;
+import com.amazon.servicecatalog.terraform.customresource.fulfillment.CommandSender.PreparedDispatch;
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.RequestType;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformResourceProperties;
+import com.amazon.servicecatalog.terraform.customresource.model.VersionedCommandRecord;
+import com.amazon.servicecatalog.terraform.customresource.persistence.AppliedConfigurationStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.ClaimCheckStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.CommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.DispatchRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.persistence.InMemoryCommandRecordStore;
+import com.amazon.servicecatalog.terraform.customresource.util.Deadline;
+import com.amazon.servicecatalog.terraform.customresource.util.ParallelStage;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.simplesystemsmanagement.model.Command;
+import com.amazonaws.services.simplesystemsmanagement.model.GetCommandInvocationResult;
+import com.amazonaws.services.simplesystemsmanagement.model.SendCommandResult;
+import com.google.common.collect.ImmutableList;
+
+public class CommandSenderTest {
+    private static final String PHYSICAL_RESOURCE_ID = "stack-Resource-0123";
+    private static final String INSTANCE_ID = "i-0123456789abcdef0";
+    private static final String COMPLETION_TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:completions";
+
+    private final Ec2Facade ec2Facade = mock(Ec2Facade.class);
+    private final SsmFacade ssmFacade = mock(SsmFacade.class);
+    private final Context context = mock(Context.class);
+    private final CommandRecordStore commandRecordStore = new InMemoryCommandRecordStore();
+    private Deadline.Scope deadlineScope;
+
+    @Before
+    public void setUp() {
+        when(ec2Facade.getInstanceIds(any(Tag.class))).thenReturn(ImmutableList.of(INSTANCE_ID));
+        // The mocked context has no time left, so commands are not polled after they were sent.
+        deadlineScope = Deadline.fromContext(context).bind();
+    }
+
+    @After
+    public void tearDown() {
+        deadlineScope.close();
+    }
+
+    @Test
+    public void sendCommandTakesLeaseAndRecordsCommand() {
+        givenSentCommand("command-1");
+
+        newSender(request("request-1"), null).sendCommand();
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-1", record.getCommandId());
+        assertEquals("request-1", record.getRequestId());
+        assertEquals(INSTANCE_ID, record.getInstanceId());
+    }
+
+    @Test
+    public void sendCommandFailsWhileAnotherRequestHoldsTheLease() {
+        putLease("request-0", System.currentTimeMillis(), null);
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> newSender(request("request-1"), null).sendCommand());
+
+        assertTrue(e.getMessage().contains("request-0"));
+        verify(ssmFacade, never()).sendCommand(anyList(), anyString(), anyString(), anyString());
+        assertEquals("request-0", commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord().getRequestId());
+    }
+
+    @Test
+    public void sendCommandTakesOverExpiredLease() {
+        putLease("request-0", System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10), null);
+        givenSentCommand("command-1");
+
+        newSender(request("request-1"), null).sendCommand();
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-1", record.getCommandId());
+        assertEquals("request-1", record.getRequestId());
+    }
+
+    @Test
+    public void sendFailureReleasesLease() {
+        RuntimeException sendFailure = new RuntimeException("SendCommand failed");
+        when(ssmFacade.sendCommand(anyList(), anyString(), anyString(), anyString())).thenThrow(sendFailure);
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> newSender(request("request-1"), COMPLETION_TOPIC_ARN).sendCommand());
+
+        assertEquals(sendFailure, e);
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertTrue(record.isPendingLease());
+        assertEquals(0, record.getCreatedAt());
+
+        // The next request takes the released lease rather than queueing behind it.
+        givenSentCommand("command-2");
+        newSender(request("request-2"), COMPLETION_TOPIC_ARN).sendCommand();
+
+        record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-2", record.getCommandId());
+        assertEquals("request-2", record.getRequestId());
+        assertNull(record.getQueuedRequest());
+    }
+
+    @Test
+    public void sendFailureReleasesLeaseKeepingRequestQueuedBehindIt() {
+        String queuedRequest = "{\"RequestId\":\"request-2\"}";
+        when(ssmFacade.sendCommand(anyList(), anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            // A concurrent request queues behind the lease while the command is being sent.
+            VersionedCommandRecord lease = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID);
+            commandRecordStore.putCommandRecord(PHYSICAL_RESOURCE_ID,
+                    lease.getRecord().toBuilder().queuedRequest(queuedRequest).build(), lease.getETag());
+            throw new RuntimeException("SendCommand failed");
+        });
+
+        assertThrows(RuntimeException.class,
+                () -> newSender(request("request-1"), COMPLETION_TOPIC_ARN).sendCommand());
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("request-1", record.getRequestId());
+        assertEquals(0, record.getCreatedAt());
+        assertEquals(queuedRequest, record.getQueuedRequest());
+    }
+
+    @Test
+    public void sendFailureLeavesLeaseThatWasTakenOver() {
+        when(ssmFacade.sendCommand(anyList(), anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            // The lease expired during a slow SendCommand and another request took it over.
+            VersionedCommandRecord lease = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID);
+            commandRecordStore.putCommandRecord(PHYSICAL_RESOURCE_ID, TerraformCommandRecord.builder()
+                    .instanceId(INSTANCE_ID)
+                    .requestId("request-2")
+                    .createdAt(System.currentTimeMillis())
+                    .build(), lease.getETag());
+            throw new RuntimeException("SendCommand failed");
+        });
+
+        assertThrows(RuntimeException.class,
+                () -> newSender(request("request-1"), COMPLETION_TOPIC_ARN).sendCommand());
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("request-2", record.getRequestId());
+        assertNotNull(record.getInstanceId());
+        assertTrue(record.getCreatedAt() > 0);
+    }
+
+    @Test
+    public void requestQueuedBehindExecutingCommandRecordsWhenItWasQueued() {
+        putCommand("request-1", "command-1", null);
+        givenCommandStatus("command-1", "InProgress");
+
+        newSender(request("request-2"), COMPLETION_TOPIC_ARN).sendCommand();
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-1", record.getCommandId());
+        assertEquals("request-2",
+                CustomResourceMarshaller.readCustomResourceRequest(record.getQueuedRequest(), true).getRequestId());
+        assertTrue(record.getQueuedAt() > 0);
+        verify(ssmFacade, never()).sendCommand(anyList(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void queuedRequestWithoutCompletionStaysQueuedWhileCommandExecutes() {
+        putCommand("request-1", "command-1", request("request-2"));
+        givenCommandStatus("command-1", "InProgress");
+
+        sendQueuedCommand(newSender(request("request-2"), COMPLETION_TOPIC_ARN));
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-1", record.getCommandId());
+        assertNotNull(record.getQueuedRequest());
+        verify(ssmFacade, never()).sendCommand(anyList(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void queuedRequestWithoutCompletionIsSentOnceCommandTimedOut() {
+        putCommand("request-1", "command-1", request("request-2"));
+        givenCommandStatus("command-1", "TimedOut");
+        givenSentCommand("command-2");
+
+        sendQueuedCommand(newSender(request("request-2"), COMPLETION_TOPIC_ARN));
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-2", record.getCommandId());
+        assertEquals("request-2", record.getRequestId());
+        assertNull(record.getQueuedRequest());
+    }
+
+    @Test
+    public void queuedRequestIsSentAfterLeaseItWaitedForWasReleased() {
+        String queuedRequest = CustomResourceMarshaller.write(request("request-2"));
+        when(ssmFacade.sendCommand(anyList(), anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            VersionedCommandRecord lease = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID);
+            commandRecordStore.putCommandRecord(PHYSICAL_RESOURCE_ID,
+                    lease.getRecord().toBuilder().queuedRequest(queuedRequest).build(), lease.getETag());
+            throw new RuntimeException("SendCommand failed");
+        });
+        assertThrows(RuntimeException.class,
+                () -> newSender(request("request-1"), COMPLETION_TOPIC_ARN).sendCommand());
+
+        givenSentCommand("command-2");
+        sendQueuedCommand(newSender(request("request-2"), COMPLETION_TOPIC_ARN));
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-2", record.getCommandId());
+        assertEquals("request-2", record.getRequestId());
+        assertNull(record.getQueuedRequest());
+    }
+
+    @Test
+    public void discardQueuedRequestOnlyRemovesOwnRequest() {
+        putCommand("request-1", "command-1", request("request-2"));
+
+        assertFalse(newSender(request("request-3"), COMPLETION_TOPIC_ARN).discardQueuedRequest());
+        assertTrue(newSender(request("request-2"), COMPLETION_TOPIC_ARN).discardQueuedRequest());
+
+        TerraformCommandRecord record = commandRecordStore.getCommandRecord(PHYSICAL_RESOURCE_ID).getRecord();
+        assertEquals("command-1", record.getCommandId());
+        assertNull(record.getQueuedRequest());
+        assertEquals(0, record.getQueuedAt());
+    }
+
+    private void sendQueuedCommand(CommandSender commandSender) {
+        ParallelStage prelude = new ParallelStage();
+        PreparedDispatch dispatch = commandSender.prepare(prelude);
+        prelude.join();
+        commandSender.sendQueuedCommand(dispatch, null);
+    }
+
+    private void givenCommandStatus(String commandId, String status) {
+        when(ssmFacade.getCommand(commandId, INSTANCE_ID))
+                .thenReturn(new GetCommandInvocationResult().withCommandId(commandId).withStatus(status));
+    }
+
+    private void putCommand(String requestId, String commandId, CustomResourceRequest queuedRequest) {
+        commandRecordStore.putCommandRecord(PHYSICAL_RESOURCE_ID, TerraformCommandRecord.builder()
+                .commandId(commandId)
+                .instanceId(INSTANCE_ID)
+                .requestId(requestId)
+                .createdAt(System.currentTimeMillis())
+                .queuedRequest(queuedRequest != null ? CustomResourceMarshaller.write(queuedRequest) : null)
+                .queuedAt(queuedRequest != null ? System.currentTimeMillis() : 0)
+                .build(), null);
+    }
+
+    private void givenSentCommand(String commandId) {
+        when(ssmFacade.sendCommand(anyList(), eq(INSTANCE_ID), anyString(), anyString()))
+                .thenReturn(new SendCommandResult().withCommand(new Command().withCommandId(commandId)));
+    }
+
+    private void putLease(String requestId, long createdAt, String expectedETag) {
+        commandRecordStore.putCommandRecord(PHYSICAL_RESOURCE_ID, TerraformCommandRecord.builder()
+                .instanceId(INSTANCE_ID)
+                .requestId(requestId)
+                .createdAt(createdAt)
+                .build(), expectedETag);
+    }
+
+    private CommandSender newSender(CustomResourceRequest request, String completionTopicArn) {
+        EnvConfig envConfig = new EnvConfig("output-bucket", "command-bucket", new Tag("key", "value"),
+                "artifact-bucket", InstanceSelectionMode.RANDOM, CommandRecordStoreMode.IN_MEMORY, "/tmp", 0,
+                completionTopicArn, false, false);
+        return new CommandSender(request, envConfig, "external-id", ec2Facade, ssmFacade, mock(S3Facade.class),
+                commandRecordStore, mock(AppliedConfigurationStore.class), mock(DispatchRecordStore.class),
+                new ClaimCheckStore(null, null, 0));
+    }
+
+    private static CustomResourceRequest request(String requestId) {
+        return CustomResourceRequest.builder()
+                .serviceToken("arn:aws:lambda:us-east-1:123456789012:function:terraform")
+                .requestType(RequestType.CREATE)
+                .responseUrl("https://cloudformation-custom-resource-response-useast1.s3.amazonaws.com/response")
+                .stackId("arn:aws:cloudformation:us-east-1:123456789012:stack/stack/0123")
+                .requestId(requestId)
+                .resourceType("Custom::Terraform")
+                .logicalResourceId("Resource")
+                .physicalResourceId(PHYSICAL_RESOURCE_ID)
+                .resourceProperties(new TerraformResourceProperties(null,
+                        "https://s3.amazonaws.com/artifact-bucket/config.tar.gz", null, null, null))
+                .build();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014-2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazon.servicecatalog.terraform.customresource.validation;
+
+import static com.amazon.servicecatalog.terraform.customresource.TerraformLaunchRequestHandler.ACCOUNT_ID_ATTRIBUTE_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazon.servicecatalog.terraform.customresource.model.CustomResourceRequest;
+import com.amazon.servicecatalog.terraform.customresource.model.RequestType;
+import com.amazon.servicecatalog.terraform.customresource.model.TerraformResourceProperties;
+import com.amazon.servicecatalog.terraform.customresource.model.sns.SnsRecordContent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class RequestValidatorTest {
+    private static final String ACCOUNT_ID = "123456789012";
+    private static final String LAUNCH_ROLE_ARN = "arn:aws:iam::" + ACCOUNT_ID + ":role/TerraformLaunchRole";
+    private static final String BUCKET = "terraform-config-" + ACCOUNT_ID;
+    private static final String DOTTED_BUCKET = "terraform.config." + ACCOUNT_ID;
+
+    private final RequestValidator validator = new RequestValidator(BUCKET);
+
+    @Test
+    public void acceptsArtifactUrlsOfWhitelistedBucket() {
+        List<String> urls = ImmutableList.of(
+                "s3://" + BUCKET + "/config.tar.gz",
+                "https://" + BUCKET + ".s3.amazonaws.com/config.tar.gz",
+                "https://" + BUCKET + ".s3.us-west-2.amazonaws.com/config.tar.gz",
+                "https://" + BUCKET + ".s3-us-west-2.amazonaws.com/config.tar.gz",
+                "https://" + BUCKET + ".s3.dualstack.us-west-2.amazonaws.com/config.tar.gz",
+                "https://" + BUCKET + ".s3.cn-north-1.amazonaws.com.cn/config.tar.gz",
+                "https://s3.amazonaws.com/" + BUCKET + "/config.tar.gz",
+                "https://s3.us-west-2.amazonaws.com/" + BUCKET + "/config.tar.gz",
+                "https://s3-us-west-2.amazonaws.com/" + BUCKET + "/config.tar.gz",
+                "https://s3.dualstack.us-west-2.amazonaws.com/" + BUCKET + "/config.tar.gz",
+                "https://s3.cn-north-1.amazonaws.com.cn/" + BUCKET + "/config.tar.gz");
+        for (String url : urls) {
+            assertEquals(url, ImmutableList.of(), validator.validate(request(url), recordContent(ACCOUNT_ID)));
+        }
+    }
+
+    @Test
+    public void acceptsDottedBucketNames() {
+        RequestValidator dottedValidator = new RequestValidator(DOTTED_BUCKET);
+        List<String> urls = ImmutableList.of(
+                "https://" + DOTTED_BUCKET + ".s3.amazonaws.com/config.tar.gz",
+                "https://s3.us-west-2.amazonaws.com/" + DOTTED_BUCKET + "/config.tar.gz");
+        for (String url : urls) {
+            assertEquals(url, ImmutableList.of(), dottedValidator.validate(request(url), recordContent(ACCOUNT_ID)));
+        }
+    }
+
+    @Test
+    public void rejectsArtifactUrlsOutsideWhitelistedBucket() {
+        List<String> urls = ImmutableList.of(
+                "https://other-bucket.s3.amazonaws.com/config.tar.gz",
+                "https://s3.amazonaws.com/other-bucket/" + BUCKET + "/config.tar.gz",
+                "https://" + BUCKET + ".s3.amazonaws.com.evil.com/config.tar.gz",
+                "https://" + BUCKET + ".evil.com/config.tar.gz",
+                "https://evil.com/" + BUCKET + "/config.tar.gz",
+                "https://" + BUCKET + ".s3.amazonaws.com@evil.com/config.tar.gz",
+                "http://169.254.169.254/latest/meta-data/",
+                "not a url");
+        for (String url : urls) {
+            List<String> violations = validator.validate(request(url), recordContent(ACCOUNT_ID));
+            assertEquals(url, 1, violations.size());
+            assertTrue(url, violations.get(0).startsWith("Invalid TerraformArtifactUrl."));
+        }
+    }
+
+    @Test
+    public void reportsAllViolations() {
+        CustomResourceRequest request = request(new TerraformResourceProperties(null,
+                "https://other-bucket.s3.amazonaws.com/config.tar.gz",
+                "arn:aws:iam::210987654321:role/TerraformLaunchRole", null,
+                ImmutableMap.of("valid", "value", "invalid", 1)));
+
+        List<String> violations = validator.validate(request, recordContent(ACCOUNT_ID));
+
+        assertEquals(violations.toString(), 4, violations.size());
+    }
+
+    @Test
+    public void rejectsEveryRequestWithoutWhitelistedBucket() {
+        String url = "https://" + BUCKET + ".s3.amazonaws.com/config.tar.gz";
+
+        List<String> violations = new RequestValidator(null).validate(request(url), recordContent(ACCOUNT_ID));
+
+        assertEquals(1, violations.size());
+    }
+
+    private static CustomResourceRequest request(String terraformArtifactUrl) {
+        return request(new TerraformResourceProperties("arn:aws:lambda:us-east-1:123456789012:function:terraform",
+                terraformArtifactUrl, LAUNCH_ROLE_ARN, null, null));
+    }
+
+    private static CustomResourceRequest request(TerraformResourceProperties properties) {
+        return CustomResourceRequest.builder()
+                .serviceToken("arn:aws:lambda:us-east-1:123456789012:function:terraform")
+                .requestType(RequestType.CREATE)
+                .responseUrl("https://cloudformation-custom-resource-response-useast1.s3.amazonaws.com/response")
+                .stackId("arn:aws:cloudformation:us-east-1:123456789012:stack/stack/0123")
+                .requestId("request-1")
+                .resourceType("Custom::Terraform")
+                .logicalResourceId("Resource")
+                .resourceProperties(properties)
+                .build();
+    }
+
+    private static SnsRecordContent recordContent(String accountId) {
+        SnsRecordContent recordContent = new SnsRecordContent();
+        recordContent.setMessageAttributes(ImmutableMap.of(ACCOUNT_ID_ATTRIBUTE_KEY,
+                new SnsRecordContent.AttributeValue("String", accountId)));
+        return recordContent;
+    }
+}
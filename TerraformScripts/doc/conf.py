@@ -6,7 +6,7 @@ import os
 import shutil
 
 
-version = '1.2'
+version = '1.3'
 project = u'TerraformScripts'
 
 # If you use autosummary, this ensures that any stale autogenerated files are
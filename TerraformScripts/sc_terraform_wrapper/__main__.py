@@ -21,6 +21,9 @@ import boto3
 import botocore
 import json
 import os
+import sc_terraform_wrapper.applied_configuration as applied_configuration
+import sc_terraform_wrapper.artifact_cache as artifact_cache
+import sc_terraform_wrapper.claim_check as claim_check
 import sc_terraform_wrapper.sc_config as sc_config
 import sc_terraform_wrapper.terraform_resource_group as terraform_resource_group
 import sc_terraform_wrapper.terraform_state as terraform_state
@@ -66,11 +69,12 @@ AssumeRoleInput = namedtuple('AssumeRoleInput', ['role_arn', 'external_id', 'ses
 
 def parse_args():
     parser = argparse.ArgumentParser()
-    parser.add_argument('request', type=json.loads, help='Request object from CloudFormation')
+    parser.add_argument('request', type=json.loads, help='Request object from CloudFormation, or its claim-checked envelope')
     parser.add_argument('output_bucket', help="S3 bucket where this script's output will be posted. Only used for posting response to CFN")
     parser.add_argument('output_key', help="S3 object name for the script's output. Only used for posting response to CFN")
     parser.add_argument('error_key', help="S3 object name for the any errors related to the script. Only used for posting response to CFN")
     parser.add_argument('external_id', help="ExternalId that should be used when assuming the ResourceCreationRole in the spoke account")
+    parser.add_argument('--artifact-metadata', type=json.loads, help="ETag, VersionId and Size of the Terraform artifact version to use. The current version is downloaded if omitted")
     return parser.parse_args()
 
 def validate_request_arg(request):
@@ -116,15 +120,25 @@ def get_exception_msg(e):
     msg = getattr(e, 'message', str(e))
     return '{}: {}'.format(type_name, msg) if type_name != 'Exception' else msg
 
-def download_artifact(s3, artifact_url, artifact_file_local_path, workspace_path, cleanups):
-    print('Downloading artifact file')
+def download_artifact(s3, artifact_url, artifact_metadata, root_workspace_path, artifact_file_local_path,
+                      workspace_path, cleanups):
     artifact_bucket, artifact_key = terraform_utils.get_s3_location(artifact_url)
     try:
-        s3.download_file(artifact_bucket, artifact_key, artifact_file_local_path)
+        if artifact_metadata:
+            artifact_cache.fetch(s3, artifact_bucket, artifact_key, artifact_metadata, root_workspace_path,
+                                 artifact_file_local_path)
+        else:
+            print('Downloading artifact file')
+            s3.download_file(artifact_bucket, artifact_key, artifact_file_local_path)
     except botocore.exceptions.ClientError as e:
-        if e.response['Error']['Code'] == '404':
+        error_code = e.response['Error']['Code']
+        if error_code in ('404', 'NoSuchKey', 'NoSuchVersion'):
             raise Exception('Terraform config does not exist. No config found at {}'
                             .format(artifact_url))
+        if error_code in ('412', 'PreconditionFailed'):
+            raise Exception('Terraform config at {} was changed after the request was sent to this server'
+                            .format(artifact_url))
+        raise
 
     if zipfile.is_zipfile(artifact_file_local_path):
         with zipfile.ZipFile(artifact_file_local_path, 'r') as z:
@@ -166,7 +180,8 @@ def run(cleanups, args, request, config, s3, response_poster):
 
     artifact_url = resource_properties['TerraformArtifactUrl']
     artifact_file_local_path = os.path.join(root_workspace_path, physical_resource_id + '-file')
-    download_artifact(s3, artifact_url, artifact_file_local_path, workspace_path, cleanups)
+    download_artifact(s3, artifact_url, args.artifact_metadata, root_workspace_path, artifact_file_local_path,
+                      workspace_path, cleanups)
 
     print('Writing backend configuration to file')
     state_file_location = inject_backend_config(workspace_path, config, physical_resource_id)
@@ -179,6 +194,11 @@ def run(cleanups, args, request, config, s3, response_poster):
     print('Starting Terraform execution')
     os.chdir(workspace_path)
     os.environ['TF_IN_AUTOMATION'] = 'true'
+    # Share downloaded providers between runs on this server. With stack affinity on the hub,
+    # repeated runs for a stack land here and `terraform init` can skip provider downloads.
+    plugin_cache_path = os.path.join(root_workspace_path, '.terraform-plugin-cache')
+    os.makedirs(plugin_cache_path, exist_ok=True)
+    os.environ['TF_PLUGIN_CACHE_DIR'] = plugin_cache_path
 
     executor = TerraformExecutor(request_type)
     executor.init_workspace()
@@ -189,6 +209,8 @@ def run(cleanups, args, request, config, s3, response_poster):
         response_poster.post_response_with_expiration_check('SUCCESS')
         return
 
+    # From here on the resources may change, so they no longer match the configuration of the last successful run.
+    applied_configuration.clear(s3, args.output_bucket, physical_resource_id)
     proc = executor.start_request_command()
     signal_handler = lambda signum, frame: response_poster.post_timeout_response(proc.pid)
     signal.signal(signal.SIGALRM, signal_handler)
@@ -210,12 +232,20 @@ def run(cleanups, args, request, config, s3, response_poster):
     if request['RequestType'] == 'Delete':
         terraform_resource_group.delete_resource_group(resource_group_name, stack_region, assume_role_input)
 
-    response_poster.post_response_with_expiration_check('SUCCESS',
-                                                        arns=arns,
-                                                        output_variables=state.outputs,
-                                                        state_file_location=state_file_location)
+    response_data = response_poster.post_response_with_expiration_check('SUCCESS',
+                                                                        arns=arns,
+                                                                        output_variables=state.outputs,
+                                                                        state_file_location=state_file_location)
     signal.alarm(0)    # Disable the alarm
 
+    if response_data is not None and request['RequestType'] in ['Create', 'Update']:
+        # The response was posted already, so failing to record the configuration only costs skipping the next no-op Update.
+        try:
+            print('Recording applied configuration')
+            applied_configuration.put(s3, args.output_bucket, request, args.artifact_metadata, response_data)
+        except Exception as e:
+            print('Failed to record applied configuration because of the following error: ', e)
+
 def clean(cleanups):
     for step, cleanUp in cleanups:
         try:
@@ -236,8 +266,11 @@ def main():
     response_poster = ResponsePoster(s3, args, wrapper_server_region)
 
     try:
-        validate_request_arg(args.request)
-        run(cleanups, args, args.request, config, s3, response_poster)
+        # A failure to resolve the request is still reported, since the envelope carries the ResponseURL.
+        request = claim_check.resolve(s3, args.request)
+        response_poster.request = request
+        validate_request_arg(request)
+        run(cleanups, args, request, config, s3, response_poster)
     except Exception as e:
         msg = 'Encountered error during fulfillment script execution - ' + get_exception_msg(e)
         response_poster.post_response_with_expiration_check('FAILED', reason=msg)
@@ -0,0 +1,35 @@
+# Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License"). You
+# may not use this file except in compliance with the License. A copy of
+# the License is located at
+#
+# http://aws.amazon.com/apache2.0/
+#
+# or in the "license" file accompanying this file. This file is
+# distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF
+# ANY KIND, either express or implied. See the License for the specific
+# language governing permissions and limitations under the License.
+
+
+import json
+
+# Shared with the Lambda, which reads the applied configuration to skip Updates that would not change anything.
+KEY_FORMAT = 'applied-configurations/{}.json'
+
+def clear(s3, bucket, physical_resource_id):
+    """Remove the applied configuration of the resource, before running Terraform may change its resources."""
+    s3.delete_object(Bucket=bucket, Key=KEY_FORMAT.format(physical_resource_id))
+
+def put(s3, bucket, request, artifact_metadata, data):
+    """Record the configuration that was applied successfully, with the data of the response that was posted."""
+    applied_configuration = {
+        'RequestId': request['RequestId'],
+        'ResourceProperties': request['ResourceProperties'],
+        'ArtifactMetadata': artifact_metadata,
+        'Data': data
+    }
+    s3.put_object(Bucket=bucket,
+                  Key=KEY_FORMAT.format(request['PhysicalResourceId']),
+                  Body=json.dumps(applied_configuration).encode('utf-8'),
+                  ContentType='application/json')
@@ -0,0 +1,89 @@
+# Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License"). You
+# may not use this file except in compliance with the License. A copy of
+# the License is located at
+#
+# http://aws.amazon.com/apache2.0/
+#
+# or in the "license" file accompanying this file. This file is
+# distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF
+# ANY KIND, either express or implied. See the License for the specific
+# language governing permissions and limitations under the License.
+
+
+import hashlib
+import os
+import shutil
+import uuid
+
+CACHE_DIRECTORY_NAME = '.terraform-artifact-cache'
+MAX_CACHED_ARTIFACTS = 32
+
+def fetch(s3, bucket, key, artifact_metadata, root_workspace_path, destination_path):
+    """Copy the artifact version that was resolved by the Lambda to destination_path, downloading it only if it is not
+    in the artifact cache of this server.
+
+    Entries are keyed by the bucket, key, version ID and ETag of the artifact, so an artifact that is overwritten gets a
+    new entry. The least recently used entries are removed once there are more than MAX_CACHED_ARTIFACTS. Raises
+    botocore's ClientError if the resolved version no longer exists or, in a bucket without versioning, the artifact
+    was overwritten since.
+    """
+    cache_path = os.path.join(root_workspace_path, CACHE_DIRECTORY_NAME)
+    os.makedirs(cache_path, exist_ok=True)
+    entry_path = os.path.join(cache_path, _entry_name(bucket, key, artifact_metadata))
+
+    if _copy_cached(entry_path, destination_path, artifact_metadata['Size']):
+        print('Using cached artifact file')
+        return
+
+    print('Downloading artifact file')
+    _download(s3, bucket, key, artifact_metadata, entry_path)
+    shutil.copyfile(entry_path, destination_path)
+    _evict(cache_path)
+
+def _entry_name(bucket, key, artifact_metadata):
+    version = '\n'.join((bucket, key, artifact_metadata.get('VersionId') or '', artifact_metadata['ETag']))
+    return hashlib.sha256(version.encode('utf-8')).hexdigest()
+
+def _copy_cached(entry_path, destination_path, size):
+    try:
+        # Another run may evict the entry at any time, which is the same as a cache miss.
+        shutil.copyfile(entry_path, destination_path)
+        os.utime(entry_path)
+    except FileNotFoundError:
+        return False
+    return os.path.getsize(destination_path) == size
+
+def _download(s3, bucket, key, artifact_metadata, entry_path):
+    # Concurrent runs may download the same artifact, each into its own file, and the entry is replaced atomically.
+    temp_path = '{}.{}.tmp'.format(entry_path, uuid.uuid4())
+    get_object_args = {'Bucket': bucket, 'Key': key, 'IfMatch': '"{}"'.format(artifact_metadata['ETag'].strip('"'))}
+    if artifact_metadata.get('VersionId'):
+        get_object_args['VersionId'] = artifact_metadata['VersionId']
+    try:
+        response = s3.get_object(**get_object_args)
+        with open(temp_path, 'wb') as f:
+            shutil.copyfileobj(response['Body'], f)
+        if os.path.getsize(temp_path) != artifact_metadata['Size']:
+            raise Exception('Downloaded artifact file is incomplete')
+        os.replace(temp_path, entry_path)
+    finally:
+        if os.path.exists(temp_path):
+            os.remove(temp_path)
+
+def _evict(cache_path):
+    entries = []
+    for name in os.listdir(cache_path):
+        if name.endswith('.tmp'):
+            continue
+        try:
+            entries.append((os.path.getmtime(os.path.join(cache_path, name)), name))
+        except FileNotFoundError:
+            pass
+    entries.sort(reverse=True)
+    for _, name in entries[MAX_CACHED_ARTIFACTS:]:
+        try:
+            os.remove(os.path.join(cache_path, name))
+        except FileNotFoundError:
+            pass
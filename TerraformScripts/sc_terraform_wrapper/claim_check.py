@@ -0,0 +1,42 @@
+# Copyright 2018 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License"). You
+# may not use this file except in compliance with the License. A copy of
+# the License is located at
+#
+# http://aws.amazon.com/apache2.0/
+#
+# or in the "license" file accompanying this file. This file is
+# distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF
+# ANY KIND, either express or implied. See the License for the specific
+# language governing permissions and limitations under the License.
+
+
+import gzip
+import hashlib
+import json
+
+# Fields that identify the CloudFormation request, which a claim-checked request must share with its envelope.
+ENVELOPE_FIELDS = ('RequestId', 'StackId', 'LogicalResourceId', 'ResponseURL')
+
+def resolve(s3, request):
+    """Return the request that a claim-checked envelope points to, or the request itself if it is not one.
+
+    Requests above the Lambda's size threshold are stored gzipped in S3 under the SHA-256 digest of their content,
+    and only an envelope without the resource properties is passed to this script.
+    """
+    claim_check = request.get('ClaimCheck')
+    if not claim_check:
+        return request
+
+    print('Resolving claim-checked request at s3://{}/{}'.format(claim_check['Bucket'], claim_check['Key']))
+    response = s3.get_object(Bucket=claim_check['Bucket'], Key=claim_check['Key'])
+    content = gzip.decompress(response['Body'].read())
+    if hashlib.sha256(content).hexdigest() != claim_check['Sha256']:
+        raise Exception('Claim-checked request does not match its SHA-256 digest')
+
+    resolved = json.loads(content.decode('utf-8'))
+    mismatched_fields = [field for field in ENVELOPE_FIELDS if resolved.get(field) != request.get(field)]
+    if mismatched_fields:
+        raise Exception('Claim-checked request does not match its envelope: ' + str(mismatched_fields))
+    return resolved
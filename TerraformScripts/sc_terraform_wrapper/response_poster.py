@@ -31,12 +31,14 @@ class ResponsePoster:
 
     def post_response_with_expiration_check(self, status, arns=None, output_variables=None,
                                             state_file_location=None, reason=''):
+        """Post the response unless the response URL expired. Returns the data of the posted response, or None if
+        it was not posted."""
         response_url = self.request['ResponseURL']
         if (seconds_until_expiry(response_url) <= 0):
             print('The cloudformation response url has expired. Not posting {} response to {}'.format(status, response_url))
-        else:
-            self._post_response(status, arns=arns, output_variables=output_variables,
-                                state_file_location=state_file_location, reason=reason)
+            return None
+        return self._post_response(status, arns=arns, output_variables=output_variables,
+                                   state_file_location=state_file_location, reason=reason)
 
     def _post_response(self, status, arns=None, output_variables=None, state_file_location=None,
                        reason=''):
@@ -66,6 +68,7 @@ class ResponsePoster:
         r = requests.put(self.request['ResponseURL'], data=json.dumps(response), headers={'Content-Type': ''})
         if r.status_code != 200:
             print('Post response to {} failed with exit code {} because {}.'.format(self.request['ResponseURL'], r.status_code, r.raise_for_status()))
+        return response['Data']
 
     def create_proxy_object(self):
         presigned_url = self.generate_presigned_url()